@@ -0,0 +1,145 @@
+package com.tokenautocomplete;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Filters lists of people the way AppFilter.performFiltering does, with each of the
+ * FilteredArrayAdapter strategies
+ * <p/>
+ * keepObject is a plain scan calling keepObject, parallel splits that scan across threads,
+ * searchKeys matches pre-normalized keys and index looks them up in the prefix index.
+ * Comparing keepObject and parallel shows where setParallelThreshold starts to pay off.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FilterBenchmark {
+
+    private static final String[] MASKS = {"m", "ma", "mar", "a", "ter", "z"};
+
+    @Param({"1000", "10000", "100000"})
+    public int size;
+
+    @Param({"keepObject", "parallel", "searchKeys", "index"})
+    public String strategy;
+
+    private FilterEngine<String[]> engine;
+    private int next = 0;
+
+    @Setup
+    public void setUp() {
+        Settings settings = new Settings();
+        switch (strategy) {
+            case "parallel":
+                settings.parallelThreshold = 1;
+                break;
+            case "searchKeys":
+                settings.matchingSearchKeys = true;
+                break;
+            case "index":
+                settings.matchingSearchKeys = true;
+                settings.indexEnabled = true;
+                break;
+        }
+        engine = new FilterEngine<>(settings, people(size));
+    }
+
+    @Benchmark
+    public List<String[]> filter() {
+        return engine.filter(MASKS[next++ % MASKS.length]);
+    }
+
+    private static List<String[]> people(int size) {
+        String[] first = {"Marshall", "Margaret", "Max", "Meg", "Amanda", "Terry", "Zoe", "Ana"};
+        String[] last = {"Weir", "Smith", "Jordan", "Peterson", "Johnson", "Anderson"};
+        Random random = new Random(size);
+        List<String[]> people = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            String name = first[random.nextInt(first.length)] + " " + last[random.nextInt(last.length)];
+            people.add(new String[]{name, name.replace(" ", ".").toLowerCase(Locale.US) + i + "@example.com"});
+        }
+        return people;
+    }
+
+    /**
+     * A FilteredArrayAdapter with no incremental filtering, result cache or result limit, so
+     * every filter starts from the full list
+     */
+    private static class Settings implements FilterEngine.Settings<String[]> {
+        boolean indexEnabled = false;
+        boolean matchingSearchKeys = false;
+        int parallelThreshold = 0;
+
+        @Override
+        public boolean keepObject(String[] obj, String mask) {
+            //The same work as the keepObject in the example app
+            mask = mask.toLowerCase(Locale.US);
+            return obj[0].toLowerCase(Locale.US).startsWith(mask)
+                    || obj[1].toLowerCase(Locale.US).startsWith(mask);
+        }
+
+        @Override
+        public String[] getSearchKeys(String[] obj) {
+            return obj;
+        }
+
+        @Override
+        public boolean isIndexEnabled() {
+            return indexEnabled;
+        }
+
+        @Override
+        public boolean isMatchingSearchKeys() {
+            return matchingSearchKeys;
+        }
+
+        @Override
+        public boolean isFilterIncremental() {
+            return false;
+        }
+
+        @Override
+        public int getResultLimit() {
+            return 0;
+        }
+
+        @Override
+        public int getParallelThreshold() {
+            return parallelThreshold;
+        }
+
+        @Override
+        public int getResultCacheSize() {
+            return 0;
+        }
+
+        @Override
+        public int score(String[] obj, String mask) {
+            return 0;
+        }
+
+        @Override
+        public boolean hasScorer() {
+            return false;
+        }
+    }
+}
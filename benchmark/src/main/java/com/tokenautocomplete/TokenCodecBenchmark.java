@@ -0,0 +1,104 @@
+package com.tokenautocomplete;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares saving tokens in the SavedState with a TokenCodec against Java serialization,
+ * the way TokenCompleteTextView saves them without a codec
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TokenCodecBenchmark {
+
+    //The same as the example app's Person
+    private static class Person implements Serializable {
+        final String name;
+        final String email;
+
+        Person(String name, String email) {
+            this.name = name;
+            this.email = email;
+        }
+    }
+
+    private static final TokenCodec CODEC = new TokenCodec() {
+        @Override
+        public void write(Object token, DataOutput out) throws IOException {
+            Person p = (Person) token;
+            out.writeUTF(p.name);
+            out.writeUTF(p.email);
+        }
+
+        @Override
+        public Object read(DataInput in) throws IOException {
+            return new Person(in.readUTF(), in.readUTF());
+        }
+    };
+
+    @Param({"10", "100", "1000"})
+    public int size;
+
+    @Param({"Serializable", "TokenCodec"})
+    public String encoding;
+
+    private List<Object> people;
+    private byte[] saved;
+
+    @Setup
+    public void setUp() throws Exception {
+        people = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            people.add(new Person("Person " + i, "person" + i + "@example.com"));
+        }
+        saved = save();
+    }
+
+    @Benchmark
+    public byte[] save() throws IOException {
+        if (encoding.equals("TokenCodec")) {
+            return EncodedTokens.encode(people, CODEC);
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(new ArrayList<>(people));
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    @Benchmark
+    public List<?> restore() throws Exception {
+        if (encoding.equals("TokenCodec")) {
+            return EncodedTokens.decode(saved, CODEC);
+        }
+
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(saved));
+        return (List<?>) in.readObject();
+    }
+}
@@ -0,0 +1,93 @@
+package com.tokenautocomplete;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times the scans CharacterTokenizer does with SplitChars on 10000 character texts
+ * <p/>
+ * findTokenStart is called at cursor positions all through the text, findTokenEnd walks
+ * every token from the start. terminateToken is the step CharacterTokenizer.terminateToken
+ * delegates to for plain text.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TokenizerBenchmark {
+
+    private static final int LENGTH = 10000;
+
+    @Param({"longToken", "shortTokens"})
+    public String text;
+
+    private SplitChars splitChars;
+    private String input;
+    private String[] tokens;
+    private int next = 0;
+
+    @Setup
+    public void setUp() {
+        splitChars = new SplitChars(new char[]{',', ';', ' '});
+        input = text.equals("longToken") ? longToken() : shortTokens();
+        tokens = new String[]{"Marshall Weir", "Marshall Weir, ", "Marshall Weir,   ", input};
+    }
+
+    @Benchmark
+    public int findTokenStart() {
+        int sum = 0;
+        for (int cursor = input.length(); cursor > 0; cursor -= 97) {
+            sum += splitChars.findTokenStart(input, cursor);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public int findTokenEnd() {
+        int count = 0;
+        for (int i = 0; i < input.length(); i = splitChars.findTokenEnd(input, i) + 1) {
+            count++;
+        }
+        return count;
+    }
+
+    @Benchmark
+    public String terminateToken() {
+        return splitChars.terminate(tokens[next++ % tokens.length]);
+    }
+
+    private static String longToken() {
+        StringBuilder text = new StringBuilder(LENGTH);
+        Random random = new Random(LENGTH);
+        while (text.length() < LENGTH) {
+            text.append((char) ('a' + random.nextInt(26)));
+        }
+        return text.toString();
+    }
+
+    private static String shortTokens() {
+        StringBuilder text = new StringBuilder(LENGTH);
+        Random random = new Random(LENGTH);
+        while (text.length() < LENGTH) {
+            text.append((char) ('a' + random.nextInt(26)));
+            if (text.length() % 20 == 0) {
+                text.append(", ");
+            }
+        }
+        return text.substring(0, LENGTH);
+    }
+}
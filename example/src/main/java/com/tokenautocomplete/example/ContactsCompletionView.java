@@ -29,22 +29,38 @@ public class ContactsCompletionView extends TokenCompleteTextView {
 
     public ContactsCompletionView(Context context) {
         super(context);
+        init();
     }
 
     public ContactsCompletionView(Context context, AttributeSet attrs) {
         super(context, attrs);
+        init();
     }
 
     public ContactsCompletionView(Context context, AttributeSet attrs, int defStyle) {
         super(context, attrs, defStyle);
+        init();
+    }
+
+    private void init() {
+        setRecycledViewPoolSize(10);
+        setTokenCodec(Person.CODEC);
     }
 
     @Override
     protected View getViewForObject(Object object) {
+        return getViewForObject(object, null);
+    }
+
+    @Override
+    protected View getViewForObject(Object object, View convertView) {
         Person p = (Person)object;
 
-        LayoutInflater l = (LayoutInflater)getContext().getSystemService(Activity.LAYOUT_INFLATER_SERVICE);
-        LinearLayout view = (LinearLayout)l.inflate(R.layout.contact_token, (ViewGroup)ContactsCompletionView.this.getParent(), false);
+        LinearLayout view = (LinearLayout)convertView;
+        if (view == null) {
+            LayoutInflater l = (LayoutInflater)getContext().getSystemService(Activity.LAYOUT_INFLATER_SERVICE);
+            view = (LinearLayout)l.inflate(R.layout.contact_token, (ViewGroup)ContactsCompletionView.this.getParent(), false);
+        }
         ((TextView)view.findViewById(R.id.name)).setText(p.getEmail());
 
         return view;
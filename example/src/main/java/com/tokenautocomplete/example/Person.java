@@ -1,5 +1,10 @@
 package com.tokenautocomplete.example;
 
+import com.tokenautocomplete.TokenCodec;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.io.Serializable;
 
 /**
@@ -10,6 +15,23 @@ import java.io.Serializable;
  * @author mgod
  */
 public class Person implements Serializable {
+    /**
+     * Saves a person as just the name and email
+     */
+    public static final TokenCodec CODEC = new TokenCodec() {
+        @Override
+        public void write(Object token, DataOutput out) throws IOException {
+            Person p = (Person) token;
+            out.writeUTF(p.getName());
+            out.writeUTF(p.getEmail());
+        }
+
+        @Override
+        public Object read(DataInput in) throws IOException {
+            return new Person(in.readUTF(), in.readUTF());
+        }
+    };
+
     private String name;
     private String email;
 
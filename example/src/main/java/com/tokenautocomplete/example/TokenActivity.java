@@ -5,7 +5,6 @@ import android.os.Bundle;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.ArrayAdapter;
 import android.widget.Button;
 import android.widget.TextView;
 
@@ -19,7 +18,7 @@ import java.util.List;
 public class TokenActivity extends Activity implements TokenCompleteTextView.TokenListener {
     ContactsCompletionView completionView;
     Person[] people;
-    ArrayAdapter<Person> adapter;
+    FilteredArrayAdapter<Person> adapter;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -57,7 +56,22 @@ public class TokenActivity extends Activity implements TokenCompleteTextView.Tok
                 mask = mask.toLowerCase();
                 return obj.getName().toLowerCase().startsWith(mask) || obj.getEmail().toLowerCase().startsWith(mask);
             }
+
+            @Override
+            protected String[] getSearchKeys(Person obj) {
+                return new String[]{obj.getName(), obj.getEmail()};
+            }
         };
+        adapter.useIndex(true);
+        adapter.matchSearchKeys(true);
+        adapter.filterIncrementally(true);
+        adapter.setResultLimit(20, new FilteredArrayAdapter.ResultScorer<Person>() {
+            @Override
+            public int score(Person obj, String mask) {
+                //Prefer people whose name matches over people whose email matches
+                return obj.getName().toLowerCase().startsWith(mask.toLowerCase()) ? 1 : 0;
+            }
+        });
 
         completionView = (ContactsCompletionView) findViewById(R.id.searchView);
         completionView.setAdapter(adapter);
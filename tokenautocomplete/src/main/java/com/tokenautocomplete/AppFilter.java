@@ -2,8 +2,6 @@ package com.tokenautocomplete;
 
 import android.widget.Filter;
 
-import java.util.ArrayList;
-import java.util.Collection;
 import java.util.List;
 
 /**
@@ -15,55 +13,142 @@ import java.util.List;
  */
 class AppFilter<T> extends Filter {
 
+    //Marks results for a constraint that was replaced before we got to it
+    private static final Object SUPERSEDED = new Object();
+
     private FilteredArrayAdapter<T> filteredArrayAdapter;
-    private List<T> sourceObjects;
+    private volatile String latestConstraint;
+    private final FilterEngine<T> engine;
 
-    public AppFilter(FilteredArrayAdapter<T> filteredArrayAdapter, List<T> objects) {
+    public AppFilter(final FilteredArrayAdapter<T> filteredArrayAdapter, List<T> objects) {
         this.filteredArrayAdapter = filteredArrayAdapter;
-        setSourceObjects(objects);
+        engine = new FilterEngine<>(new FilterEngine.Settings<T>() {
+            @Override
+            public boolean keepObject(T obj, String mask) {
+                return filteredArrayAdapter.keepObject(obj, mask);
+            }
+
+            @Override
+            public String[] getSearchKeys(T obj) {
+                return filteredArrayAdapter.getSearchKeys(obj);
+            }
+
+            @Override
+            public boolean isIndexEnabled() {
+                return filteredArrayAdapter.isIndexEnabled();
+            }
+
+            @Override
+            public boolean isMatchingSearchKeys() {
+                return filteredArrayAdapter.isMatchingSearchKeys();
+            }
+
+            @Override
+            public boolean isFilterIncremental() {
+                return filteredArrayAdapter.isFilterIncremental();
+            }
+
+            @Override
+            public int getResultLimit() {
+                return filteredArrayAdapter.getResultLimit();
+            }
+
+            @Override
+            public int getParallelThreshold() {
+                return filteredArrayAdapter.getParallelThreshold();
+            }
+
+            @Override
+            public int getResultCacheSize() {
+                return filteredArrayAdapter.getResultCacheSize();
+            }
+
+            @Override
+            public int score(T obj, String mask) {
+                FilteredArrayAdapter.ResultScorer<T> scorer = filteredArrayAdapter.getResultScorer();
+                return scorer == null ? 0 : scorer.score(obj, mask);
+            }
+
+            @Override
+            public boolean hasScorer() {
+                return filteredArrayAdapter.getResultScorer() != null;
+            }
+        }, objects);
     }
 
+    /**
+     * Filter the constraint, dropping results for any constraint requested before it. Results
+     * for the older constraints are never computed or published once this is called.
+     *
+     * @param constraint the latest text to filter
+     * @param listener   notified when filtering is done
+     */
+    void filterLatest(CharSequence constraint, FilterListener listener) {
+        latestConstraint = constraint == null ? null : constraint.toString();
+        filter(constraint, listener);
+    }
+
+    private boolean isSuperseded(CharSequence constraint) {
+        String latest = latestConstraint;
+        return constraint != null && latest != null && !latest.equals(constraint.toString());
+    }
+
+    /**
+     * Delegates to FilterEngine.setSourceObjects
+     */
     public void setSourceObjects(List<T> objects) {
-        synchronized (this) {
-            sourceObjects = new ArrayList<>(objects);
-        }
+        engine.setSourceObjects(objects);
+    }
+
+    /**
+     * Delegates to FilterEngine.invalidate
+     */
+    void invalidate() {
+        engine.invalidate();
+    }
+
+    /**
+     * Delegates to FilterEngine.invalidateResults
+     */
+    void invalidateResults() {
+        engine.invalidateResults();
+    }
+
+    int getCacheHits() {
+        return engine.getCacheHits();
+    }
+
+    int getCacheMisses() {
+        return engine.getCacheMisses();
     }
 
     @Override
     protected FilterResults performFiltering(CharSequence chars) {
         FilterResults result = new FilterResults();
-        if (chars != null && chars.length() > 0) {
-            String mask = chars.toString();
-            List<T> keptObjects = new ArrayList<>();
-
-            for (T object : sourceObjects) {
-                if (filteredArrayAdapter.keepObject(object, mask))
-                    keptObjects.add(object);
-            }
-            result.count = keptObjects.size();
-            result.values = keptObjects;
-        } else {
-            // add all objects
-            result.values = sourceObjects;
-            result.count = sourceObjects.size();
+        if (isSuperseded(chars)) {
+            result.values = SUPERSEDED;
+            return result;
         }
+
+        List<T> objects = engine.filter(chars == null ? null : chars.toString());
+        result.values = objects;
+        result.count = objects.size();
         return result;
     }
 
     @SuppressWarnings("unchecked")
     @Override
     protected void publishResults(CharSequence constraint, FilterResults results) {
-        filteredArrayAdapter.clear();
+        if (results.values == SUPERSEDED || isSuperseded(constraint)) {
+            //A newer constraint is on its way, keep the drop down as it is until then
+            results.count = filteredArrayAdapter.getCount();
+            return;
+        }
+
+        List<T> objects = null;
         if (results.count > 0) {
-            Collection<T> objects = (Collection<T>) results.values;
-            if (objects != null) {
-                for (T object : objects) {
-                    filteredArrayAdapter.add(object);
-                }
-            }
-            filteredArrayAdapter.notifyDataSetChanged();
-        } else {
-            filteredArrayAdapter.notifyDataSetInvalidated();
+            objects = (List<T>) results.values;
         }
+        filteredArrayAdapter.replaceFilteredObjects(objects);
     }
 }
@@ -0,0 +1,46 @@
+package com.tokenautocomplete;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Converts token objects to and from a compact byte array with a TokenCodec
+ */
+final class EncodedTokens {
+
+    private EncodedTokens() {}
+
+    static byte[] encode(List<?> tokens, TokenCodec codec) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 + tokens.size() * 32);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(tokens.size());
+            for (Object token : tokens) {
+                codec.write(token, out);
+            }
+            out.flush();
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to encode tokens", e);
+        }
+        return bytes.toByteArray();
+    }
+
+    static ArrayList<Object> decode(byte[] encoded, TokenCodec codec) {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(encoded));
+        try {
+            int count = in.readInt();
+            ArrayList<Object> tokens = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                tokens.add(codec.read(in));
+            }
+            return tokens;
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to decode tokens", e);
+        }
+    }
+}
@@ -0,0 +1,418 @@
+package com.tokenautocomplete;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * The filtering AppFilter does, without the Android Filter around it
+ * <p/>
+ * Keeps a snapshot of the source objects and everything built from it: the search keys,
+ * the prefix index, the results of previous masks for incremental filtering and the result
+ * cache. Filter is only called from one thread at a time, setSourceObjects from any thread.
+ */
+class FilterEngine<T> {
+
+    //How many extensions of a mask we remember for backspacing
+    private static final int MAX_REFINEMENTS = 32;
+
+    /**
+     * How the adapter wants its objects filtered
+     */
+    interface Settings<T> {
+        boolean keepObject(T obj, String mask);
+
+        String[] getSearchKeys(T obj);
+
+        boolean isIndexEnabled();
+
+        boolean isMatchingSearchKeys();
+
+        boolean isFilterIncremental();
+
+        int getResultLimit();
+
+        int getParallelThreshold();
+
+        int getResultCacheSize();
+
+        /**
+         * @return the score for a kept object, ignored unless hasScorer is true
+         */
+        int score(T obj, String mask);
+
+        boolean hasScorer();
+    }
+
+    private final Settings<T> settings;
+    private final ParallelFilter.Predicate<T> keepObject = new ParallelFilter.Predicate<T>() {
+        @Override
+        public boolean keep(T obj, String mask) {
+            return settings.keepObject(obj, mask);
+        }
+    };
+    private volatile Snapshot<T> snapshot;
+
+    //Only touched from the filter thread
+    private Snapshot<T> cachedSnapshot;
+    private ArrayList<Refinement<T>> refinements = new ArrayList<>();
+    private LinkedHashMap<String, Refinement<T>> resultCache =
+            new LinkedHashMap<String, Refinement<T>>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Refinement<T>> eldest) {
+                    return size() > settings.getResultCacheSize();
+                }
+            };
+    private volatile int cacheHits = 0;
+    private volatile int cacheMisses = 0;
+    private volatile int resultsGeneration = 0;
+    private int cachedResultsGeneration = 0;
+
+    FilterEngine(Settings<T> settings, List<T> objects) {
+        this.settings = settings;
+        setSourceObjects(objects);
+    }
+
+    /**
+     * Publish a new snapshot of the source objects if the list contents changed. If they are the
+     * same objects, the current snapshot and everything built from it are kept.
+     */
+    void setSourceObjects(List<T> objects) {
+        Snapshot<T> current = snapshot;
+        if (current == null || !sameObjects(current.objects, objects)) {
+            snapshot = new Snapshot<>(new ArrayList<>(objects));
+        }
+    }
+
+    /**
+     * Drop everything built from the source objects, the search keys and prefix index as well
+     * as the results, for when the objects themselves may have changed
+     */
+    void invalidate() {
+        snapshot = new Snapshot<>(snapshot.objects);
+    }
+
+    /**
+     * Drop the remembered results but keep the search keys and prefix index, for when the
+     * settings the results were filtered with changed
+     */
+    void invalidateResults() {
+        resultsGeneration++;
+    }
+
+    private static <T> boolean sameObjects(ArrayList<T> current, List<T> objects) {
+        if (current.size() != objects.size()) return false;
+
+        int i = 0;
+        for (T object : objects) {
+            if (current.get(i++) != object) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Filter the source objects
+     *
+     * @param mask current text we are completing against, all objects are kept if it is empty
+     * @return the kept objects, not to be modified
+     */
+    List<T> filter(String mask) {
+        //Read the snapshot once, setSourceObjects may replace it while we filter
+        Snapshot<T> source = snapshot;
+        List<T> objects = source.objects;
+
+        if (mask == null || mask.length() == 0) {
+            int limit = settings.getResultLimit();
+            if (limit > 0 && limit < objects.size()) {
+                objects = new ArrayList<>(objects.subList(0, limit));
+            }
+            return objects;
+        }
+
+        boolean incremental = settings.isFilterIncremental();
+        boolean cached = settings.getResultCacheSize() > 0;
+        checkCachedSnapshot(source);
+
+        if (cached) {
+            Refinement<T> hit = resultCache.get(mask);
+            if (hit != null) {
+                cacheHits++;
+                return hit.objects;
+            }
+            cacheMisses++;
+        }
+
+        List<T> candidates = null;
+        if (incremental) {
+            Refinement<T> refinement = closestRefinement(mask);
+            if (refinement != null && refinement.mask.equals(mask)) {
+                return refinement.objects;
+            } else if (refinement != null) {
+                candidates = refinement.objects;
+            }
+        }
+        if (candidates == null) {
+            candidates = candidates(source, mask);
+        }
+
+        Refinement<T> kept;
+        if (settings.isMatchingSearchKeys()) {
+            kept = keep(candidates, mask, searchKeyMatcher(source), SearchKeys.normalize(mask));
+        } else {
+            kept = keep(candidates, mask, keepObject, mask);
+        }
+        if (incremental) {
+            pushRefinement(kept);
+        }
+        if (cached) {
+            resultCache.put(mask, kept);
+        }
+        return kept.objects;
+    }
+
+    /**
+     * Objects that may pass keepObject for the mask. Uses the prefix index if the adapter
+     * has it enabled, building it the first time it is needed for the snapshot
+     */
+    private List<T> candidates(Snapshot<T> source, String mask) {
+        List<T> objects = source.objects;
+        if (!settings.isIndexEnabled()) {
+            return objects;
+        }
+
+        PrefixIndex prefixIndex = source.index;
+        if (prefixIndex == null) {
+            prefixIndex = new PrefixIndex(searchKeys(source));
+            source.index = prefixIndex;
+        }
+
+        return new IndexedCandidates<>(objects, prefixIndex.lookup(SearchKeys.normalize(mask)));
+    }
+
+    /**
+     * Normalized search keys for each object in the snapshot, extracted the first time they
+     * are needed and then reused for every filter on the same snapshot
+     */
+    private String[][] searchKeys(Snapshot<T> source) {
+        String[][] keys = source.keys;
+        if (keys == null) {
+            List<T> objects = source.objects;
+            keys = new String[objects.size()][];
+            IdentityHashMap<T, String[]> keysByObject = new IdentityHashMap<>(keys.length);
+            for (int i = 0; i < keys.length; i++) {
+                T object = objects.get(i);
+                keys[i] = SearchKeys.normalize(settings.getSearchKeys(object));
+                keysByObject.put(object, keys[i]);
+            }
+            source.keysByObject = keysByObject;
+            source.keys = keys;
+        }
+        return keys;
+    }
+
+    /**
+     * Test for keeping an object by its normalized search keys instead of calling keepObject
+     */
+    private ParallelFilter.Predicate<T> searchKeyMatcher(Snapshot<T> source) {
+        searchKeys(source);
+        final IdentityHashMap<T, String[]> keysByObject = source.keysByObject;
+        return new ParallelFilter.Predicate<T>() {
+            @Override
+            public boolean keep(T obj, String normalizedMask) {
+                return SearchKeys.matches(keysByObject.get(obj), normalizedMask);
+            }
+        };
+    }
+
+    /**
+     * Run the predicate over the candidates. If the adapter has a result limit, only the best
+     * results are kept: the highest scores if it has a scorer, otherwise the first matches,
+     * in which case we stop as soon as we have enough of them. Large lists are split across
+     * threads if the adapter allows it, unless we can stop early
+     *
+     * @param mask          the text we are completing against, as typed
+     * @param predicate     keepObject or the search key matcher
+     * @param predicateMask the mask to pass to the predicate
+     */
+    private Refinement<T> keep(List<T> candidates, String mask,
+                               ParallelFilter.Predicate<T> predicate, String predicateMask) {
+        int limit = settings.getResultLimit();
+        boolean hasScorer = settings.hasScorer();
+        int parallelThreshold = settings.getParallelThreshold();
+
+        boolean kept = false;
+        if (parallelThreshold > 0 && candidates.size() >= parallelThreshold
+                && (limit <= 0 || hasScorer)) {
+            candidates = ParallelFilter.filter(candidates, predicateMask, predicate);
+            if (limit <= 0) {
+                return new Refinement<>(mask, candidates, false);
+            }
+            kept = true;
+        }
+
+        if (limit <= 0 || !hasScorer) {
+            List<T> keptObjects = new ArrayList<>();
+            int size = candidates.size();
+            for (int i = 0; i < size; i++) {
+                T object = candidates.get(i);
+                if (predicate.keep(object, predicateMask)) {
+                    keptObjects.add(object);
+                    if (keptObjects.size() == limit) {
+                        return new Refinement<>(mask, keptObjects, i < size - 1);
+                    }
+                }
+            }
+            return new Refinement<>(mask, keptObjects, false);
+        }
+
+        //Min heap of the best results so far, the worst one is at the head
+        PriorityQueue<Scored<T>> best = new PriorityQueue<>(Math.min(limit, candidates.size()) + 1);
+        boolean truncated = false;
+        int size = candidates.size();
+        for (int i = 0; i < size; i++) {
+            T object = candidates.get(i);
+            if (kept || predicate.keep(object, predicateMask)) {
+                best.add(new Scored<>(object, settings.score(object, mask), i));
+                if (best.size() > limit) {
+                    best.poll();
+                    truncated = true;
+                }
+            }
+        }
+
+        ArrayList<Scored<T>> ranked = new ArrayList<>(best);
+        Collections.sort(ranked, Collections.reverseOrder());
+        List<T> keptObjects = new ArrayList<>(ranked.size());
+        for (Scored<T> scored : ranked) {
+            keptObjects.add(scored.object);
+        }
+        return new Refinement<>(mask, keptObjects, truncated);
+    }
+
+    /**
+     * Find the results of the longest previous mask this mask extends. Steps for masks that
+     * aren't a prefix of this one are dropped, so backspacing walks back down the stack.
+     * Results cut off by the result limit can only be reused for the exact same mask
+     *
+     * @return the closest previous results or null if we need to start from the source objects
+     */
+    private Refinement<T> closestRefinement(String mask) {
+        for (int i = refinements.size() - 1; i >= 0; i--) {
+            Refinement<T> refinement = refinements.get(i);
+            if (!mask.startsWith(refinement.mask)) {
+                refinements.remove(i);
+            } else if (!refinement.truncated || refinement.mask.equals(mask)) {
+                return refinement;
+            }
+        }
+        return null;
+    }
+
+    private void pushRefinement(Refinement<T> refinement) {
+        if (refinements.size() == MAX_REFINEMENTS) {
+            refinements.remove(0);
+        }
+        refinements.add(refinement);
+    }
+
+    /**
+     * Drop everything we remember about old results once there is a new snapshot or the
+     * results were invalidated
+     */
+    private void checkCachedSnapshot(Snapshot<T> source) {
+        int generation = resultsGeneration;
+        if (cachedSnapshot != source || cachedResultsGeneration != generation) {
+            cachedSnapshot = source;
+            cachedResultsGeneration = generation;
+            refinements.clear();
+            resultCache.clear();
+        }
+    }
+
+    int getCacheHits() {
+        return cacheHits;
+    }
+
+    int getCacheMisses() {
+        return cacheMisses;
+    }
+
+    /**
+     * An immutable copy of the source objects. Each call to setSourceObjects publishes a new
+     * one, and everything derived from the source is tied to the snapshot it was built from.
+     */
+    private static class Snapshot<T> {
+        //Never modified once the snapshot is published
+        final ArrayList<T> objects;
+        volatile PrefixIndex index;
+        //Set before keys, and only read after keys is
+        IdentityHashMap<T, String[]> keysByObject;
+        volatile String[][] keys;
+
+        Snapshot(ArrayList<T> objects) {
+            this.objects = objects;
+        }
+    }
+
+    private static class Refinement<T> {
+        final String mask;
+        final List<T> objects;
+        //True if the result limit dropped some matches
+        final boolean truncated;
+
+        Refinement(String mask, List<T> objects, boolean truncated) {
+            this.mask = mask;
+            this.objects = objects;
+            this.truncated = truncated;
+        }
+    }
+
+    private static class Scored<T> implements Comparable<Scored<T>> {
+        final T object;
+        final int score;
+        final int position;
+
+        Scored(T object, int score, int position) {
+            this.object = object;
+            this.score = score;
+            this.position = position;
+        }
+
+        @Override
+        public int compareTo(Scored<T> another) {
+            if (score != another.score) {
+                return score < another.score ? -1 : 1;
+            }
+            //Earlier candidates win ties
+            return position > another.position ? -1 : (position == another.position ? 0 : 1);
+        }
+    }
+
+    /**
+     * Source objects at the positions found by the prefix index, without copying them
+     */
+    private static class IndexedCandidates<T> extends AbstractList<T> {
+        private final List<T> objects;
+        private final int[] positions;
+
+        IndexedCandidates(List<T> objects, int[] positions) {
+            this.objects = objects;
+            this.positions = positions;
+        }
+
+        @Override
+        public T get(int location) {
+            return objects.get(positions[location]);
+        }
+
+        @Override
+        public int size() {
+            return positions.length;
+        }
+    }
+}
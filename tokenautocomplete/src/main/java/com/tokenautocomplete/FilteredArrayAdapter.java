@@ -1,11 +1,14 @@
 package com.tokenautocomplete;
 
+import android.annotation.TargetApi;
 import android.content.Context;
+import android.os.Build;
 import android.widget.ArrayAdapter;
 import android.widget.Filter;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
 
 /**
@@ -24,6 +27,14 @@ abstract public class FilteredArrayAdapter<T> extends ArrayAdapter<T> {
 
     private List<T> originalObjects;
     private Filter filter;
+    //Set on the main thread and read on the filter thread
+    private volatile boolean indexEnabled = false;
+    private volatile boolean matchSearchKeys = false;
+    private volatile boolean filterIncremental = false;
+    private volatile int resultLimit = 0;
+    private volatile ResultScorer<T> resultScorer;
+    private volatile int parallelThreshold = 0;
+    private volatile int resultCacheSize = 0;
 
     /**
      * Constructor
@@ -101,20 +112,69 @@ abstract public class FilteredArrayAdapter<T> extends ArrayAdapter<T> {
         this.originalObjects = objects;
     }
 
-    @SuppressWarnings("unchecked")
     @Override
     public void notifyDataSetChanged() {
-        ((AppFilter) getFilter()).setSourceObjects(this.originalObjects);
+        refreshSourceObjects();
         super.notifyDataSetChanged();
     }
 
-    @SuppressWarnings("unchecked")
     @Override
     public void notifyDataSetInvalidated() {
-        ((AppFilter) getFilter()).setSourceObjects(this.originalObjects);
+        refreshSourceObjects();
         super.notifyDataSetInvalidated();
     }
 
+    /**
+     * Pick up changes to the source objects. The objects may have changed in place, and this is
+     * how the search keys get extracted again, so everything built from them is dropped even if
+     * the list holds the same objects.
+     */
+    @SuppressWarnings("unchecked")
+    private void refreshSourceObjects() {
+        AppFilter<T> appFilter = (AppFilter<T>) getFilter();
+        appFilter.setSourceObjects(originalObjects);
+        appFilter.invalidate();
+    }
+
+    /**
+     * Replace the displayed objects with the filter results, sending a single change notification
+     * instead of one for each object. Does nothing if the results are already displayed.
+     *
+     * @param objects the filtered objects, null or empty if nothing matched
+     */
+    void replaceFilteredObjects(List<T> objects) {
+        int count = objects == null ? 0 : objects.size();
+        if (count == getCount()) {
+            boolean same = true;
+            for (int i = 0; i < count && same; i++) {
+                same = getItem(i) == objects.get(i);
+            }
+            if (same) return;
+        }
+
+        setNotifyOnChange(false);
+        clear();
+        if (count > 0) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+                api11AddAll(objects);
+            } else {
+                for (T object : objects) {
+                    add(object);
+                }
+            }
+            //Skip our override, the source objects haven't changed
+            super.notifyDataSetChanged();
+        } else {
+            super.notifyDataSetInvalidated();
+            setNotifyOnChange(true);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private void api11AddAll(Collection<T> objects) {
+        addAll(objects);
+    }
+
     @Override
     public Filter getFilter() {
         if (filter == null) {
@@ -123,6 +183,171 @@ abstract public class FilteredArrayAdapter<T> extends ArrayAdapter<T> {
         return filter;
     }
 
+    /**
+     * Sets whether to look up objects through a prefix index built over getSearchKeys instead
+     * of calling keepObject on every object. keepObject is still called, but only for objects
+     * with a search key starting with the mask.
+     * <p/>
+     * Defaults to false. The index is rebuilt the first time you filter after notifyDataSetChanged.
+     */
+    @SuppressWarnings("unused")
+    public void useIndex(boolean use) {
+        indexEnabled = use;
+        invalidateResults();
+    }
+
+    boolean isIndexEnabled() {
+        return indexEnabled;
+    }
+
+    /**
+     * Sets whether to keep objects with a search key starting with the mask instead of calling
+     * keepObject. Keys are extracted with getSearchKeys and normalized once, ignoring case and
+     * accents, then reused until notifyDataSetChanged, so filtering doesn't allocate anything
+     * per object.
+     * <p/>
+     * Defaults to false.
+     */
+    @SuppressWarnings("unused")
+    public void matchSearchKeys(boolean match) {
+        matchSearchKeys = match;
+        invalidateResults();
+    }
+
+    boolean isMatchingSearchKeys() {
+        return matchSearchKeys;
+    }
+
+    /**
+     * Sets whether to filter only the previous results when the mask extends the previous mask,
+     * for example when the user types "mar" after "ma". Going back to a shorter mask reuses
+     * the results remembered for it.
+     * <p/>
+     * Defaults to false. Only enable this if keepObject never keeps an object for a mask that it
+     * rejected for any prefix of that mask.
+     */
+    @SuppressWarnings("unused")
+    public void filterIncrementally(boolean incremental) {
+        filterIncremental = incremental;
+        invalidateResults();
+    }
+
+    boolean isFilterIncremental() {
+        return filterIncremental;
+    }
+
+    /**
+     * Sets the maximum number of results to display. Without a scorer, the first matching
+     * objects are kept and filtering stops as soon as enough of them are found. With a scorer,
+     * the highest scoring objects are kept, best first.
+     *
+     * @param limit maximum number of results, 0 for no limit
+     * @param scorer ranks the matching objects, may be null
+     */
+    @SuppressWarnings("unused")
+    public void setResultLimit(int limit, ResultScorer<T> scorer) {
+        resultLimit = limit;
+        resultScorer = scorer;
+        invalidateResults();
+    }
+
+    /**
+     * Shorthand for setResultLimit(limit, null)
+     *
+     * @param limit maximum number of results, 0 for no limit
+     */
+    @SuppressWarnings("unused")
+    public void setResultLimit(int limit) {
+        setResultLimit(limit, null);
+    }
+
+    int getResultLimit() {
+        return resultLimit;
+    }
+
+    ResultScorer<T> getResultScorer() {
+        return resultScorer;
+    }
+
+    /**
+     * Sets the number of objects above which filtering is split across several threads.
+     * keepObject will be called from those threads at the same time, so it must be thread safe.
+     * Lists limited with setResultLimit and no scorer are always filtered on one thread, since
+     * that filter stops as soon as it has enough results.
+     * <p/>
+     * Defaults to 0, which never filters in parallel. Below a few thousand objects, starting the
+     * threads costs more than it saves.
+     *
+     * @param threshold minimum number of objects to filter in parallel, 0 to disable
+     */
+    @SuppressWarnings("unused")
+    public void setParallelThreshold(int threshold) {
+        parallelThreshold = threshold;
+    }
+
+    int getParallelThreshold() {
+        return parallelThreshold;
+    }
+
+    /**
+     * Sets how many masks to remember the results for. When the user types a mask again, for
+     * example after deleting a few characters, the remembered results are displayed without
+     * filtering. The least recently used results are forgotten first, and all of them are
+     * forgotten when you call notifyDataSetChanged.
+     * <p/>
+     * Defaults to 0, which doesn't remember any results.
+     *
+     * @param entries maximum number of masks to remember the results for
+     */
+    @SuppressWarnings("unused")
+    public void setResultCacheSize(int entries) {
+        resultCacheSize = entries;
+        invalidateResults();
+    }
+
+    int getResultCacheSize() {
+        return resultCacheSize;
+    }
+
+    /**
+     * Forget the results filtered with the old settings, they may not match the new ones
+     */
+    private void invalidateResults() {
+        if (filter instanceof AppFilter) {
+            ((AppFilter) filter).invalidateResults();
+        }
+    }
+
+    /**
+     * @return how many times filtering used remembered results, to help tune setResultCacheSize
+     */
+    @SuppressWarnings({"unused", "unchecked"})
+    public int getResultCacheHits() {
+        return ((AppFilter<T>) getFilter()).getCacheHits();
+    }
+
+    /**
+     * @return how many times filtering had to filter a mask it had no remembered results for
+     */
+    @SuppressWarnings({"unused", "unchecked"})
+    public int getResultCacheMisses() {
+        return ((AppFilter<T>) getFilter()).getCacheMisses();
+    }
+
+    /**
+     * Keys used to find the object in the prefix index, or to match it with matchSearchKeys.
+     * Matching ignores case and accents. When the index is enabled, keepObject must never keep
+     * an object unless one of these keys starts with the mask.
+     * <p/>
+     * This is only called once per object until notifyDataSetChanged.
+     *
+     * @param obj object to get the keys for
+     * @return keys the mask should be matched against, for example the name and email
+     */
+    protected String[] getSearchKeys(T obj) {
+        return new String[]{obj.toString()};
+    }
+
     /**
      * Filter method used by the adapter. Return true if the object should remain in the list
      *
@@ -132,4 +357,15 @@ abstract public class FilteredArrayAdapter<T> extends ArrayAdapter<T> {
      */
     abstract protected boolean keepObject(T obj, String mask);
 
+    /**
+     * Ranks the objects kept by keepObject when the results are limited
+     */
+    public interface ResultScorer<T> {
+        /**
+         * @param obj  object that was kept for the mask
+         * @param mask current text in the edit text we are completing against
+         * @return a score for the object, higher scores are displayed first
+         */
+        int score(T obj, String mask);
+    }
 }
\ No newline at end of file
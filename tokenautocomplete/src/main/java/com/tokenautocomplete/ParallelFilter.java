@@ -0,0 +1,122 @@
+package com.tokenautocomplete;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs a filter predicate over slices of a large list on a small shared thread pool
+ * <p/>
+ * Each slice is filtered on its own thread and the kept objects are merged back in
+ * source order, so the results are the same as a sequential scan.
+ */
+class ParallelFilter {
+
+    private static ExecutorService executor;
+    private static int threads;
+
+    private ParallelFilter() {}
+
+    interface Predicate<T> {
+        boolean keep(T obj, String mask);
+    }
+
+    private static synchronized ExecutorService executor() {
+        if (executor == null) {
+            //Leave a core for the UI thread
+            threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+            executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                private int count = 0;
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "TokenAutoComplete filter " + ++count);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return executor;
+    }
+
+    /**
+     * Number of slices we split a list into, the pool threads plus the calling thread
+     */
+    static int parallelism() {
+        executor();
+        return threads + 1;
+    }
+
+    /**
+     * Filter the objects sequentially
+     */
+    static <T> List<T> filter(List<T> objects, int start, int end, String mask, Predicate<T> predicate) {
+        List<T> kept = new ArrayList<>();
+        for (int i = start; i < end; i++) {
+            T object = objects.get(i);
+            if (predicate.keep(object, mask)) {
+                kept.add(object);
+            }
+        }
+        return kept;
+    }
+
+    /**
+     * Filter the objects in parallel
+     *
+     * @param objects   objects to filter, must support fast random access
+     * @param mask      current text we are completing against
+     * @param predicate test for keeping an object, called from several threads at once
+     * @return the kept objects in source order
+     */
+    static <T> List<T> filter(final List<T> objects, final String mask, final Predicate<T> predicate) {
+        int slices = parallelism();
+        int size = objects.size();
+        if (size < slices * 2) {
+            return filter(objects, 0, size, mask, predicate);
+        }
+
+        ArrayList<Future<List<T>>> futures = new ArrayList<>(slices - 1);
+        int sliceSize = (size + slices - 1) / slices;
+        ExecutorService pool = executor();
+        for (int start = sliceSize; start < size; start += sliceSize) {
+            final int sliceStart = start;
+            final int sliceEnd = Math.min(size, start + sliceSize);
+            futures.add(pool.submit(new Callable<List<T>>() {
+                @Override
+                public List<T> call() {
+                    return filter(objects, sliceStart, sliceEnd, mask, predicate);
+                }
+            }));
+        }
+
+        //Do the first slice ourselves instead of waiting
+        List<T> kept = filter(objects, 0, Math.min(size, sliceSize), mask, predicate);
+        boolean interrupted = false;
+        for (Future<List<T>> future : futures) {
+            while (true) {
+                try {
+                    kept.addAll(future.get());
+                    break;
+                } catch (InterruptedException e) {
+                    //The slice is already running, we still need its results
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+                    if (cause instanceof Error) throw (Error) cause;
+                    throw new RuntimeException(cause);
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return kept;
+    }
+}
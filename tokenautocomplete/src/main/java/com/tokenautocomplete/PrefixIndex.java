@@ -0,0 +1,97 @@
+package com.tokenautocomplete;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Sorted key array used by AppFilter to find objects with a key starting with a mask
+ * without testing every object in the source list
+ * <p/>
+ * Each object can contribute any number of keys, normalized with SearchKeys. A lookup costs
+ * a binary search plus one step per matching key.
+ */
+class PrefixIndex {
+
+    private final String[] keys;
+    private final int[] owners;
+
+    /**
+     * Build an index
+     *
+     * @param objectKeys normalized search keys for each object, in source order
+     */
+    PrefixIndex(String[][] objectKeys) {
+        int count = 0;
+        for (String[] k : objectKeys) {
+            count += k.length;
+        }
+
+        Entry[] entries = new Entry[count];
+        int e = 0;
+        for (int owner = 0; owner < objectKeys.length; owner++) {
+            for (String key : objectKeys[owner]) {
+                entries[e++] = new Entry(key, owner);
+            }
+        }
+        Arrays.sort(entries, 0, e, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry lhs, Entry rhs) {
+                return lhs.key.compareTo(rhs.key);
+            }
+        });
+
+        keys = new String[e];
+        owners = new int[e];
+        for (int i = 0; i < e; i++) {
+            keys[i] = entries[i].key;
+            owners[i] = entries[i].owner;
+        }
+    }
+
+    /**
+     * Find every object with at least one key starting with the prefix
+     *
+     * @param prefix normalized prefix to search for
+     * @return positions of the matching objects in the source list, ascending and unique
+     */
+    int[] lookup(String prefix) {
+        int lo = 0;
+        int hi = keys.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (keys[mid].compareTo(prefix) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+
+        int end = lo;
+        while (end < keys.length && keys[end].startsWith(prefix)) {
+            end++;
+        }
+        if (end == lo) return new int[0];
+
+        int[] matches = Arrays.copyOfRange(owners, lo, end);
+        Arrays.sort(matches);
+
+        //An object can match on several of its keys, only report it once
+        int unique = 1;
+        for (int i = 1; i < matches.length; i++) {
+            if (matches[i] != matches[unique - 1]) {
+                matches[unique++] = matches[i];
+            }
+        }
+        return unique == matches.length ? matches : Arrays.copyOf(matches, unique);
+    }
+
+    private static class Entry {
+        final String key;
+        final int owner;
+
+        Entry(String key, int owner) {
+            this.key = key;
+            this.owner = owner;
+        }
+    }
+}
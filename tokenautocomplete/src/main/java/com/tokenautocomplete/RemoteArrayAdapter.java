@@ -0,0 +1,375 @@
+package com.tokenautocomplete;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.widget.ArrayAdapter;
+import android.widget.Filter;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * ArrayAdapter that loads its suggestions from a DataSource, usually a server, instead of
+ * filtering a list in memory. Override keepObject to filter the loaded results locally as well.
+ * <p/>
+ * Only one query is in flight at a time. Typing a new constraint cancels the query for the old
+ * one, and results that arrive for an old constraint are dropped. Call loadMore to append the
+ * next page of results for the current constraint, for example when the user scrolls to the
+ * end of the drop down.
+ */
+public class RemoteArrayAdapter<T> extends ArrayAdapter<T> {
+
+    private DataSource<T> dataSource;
+    private Handler handler = new Handler(Looper.getMainLooper());
+    private RemoteFilter filter;
+    private int pageSize = 20;
+
+    //State of the displayed results, only touched on the main thread
+    private String constraint;
+    private int loadedCount = 0;
+    private boolean hasMore = false;
+    private PageQuery pageQuery;
+
+    /**
+     * Constructor
+     *
+     * @param context    The current context.
+     * @param resource   The resource ID for a layout file containing a TextView to use when
+     *                   instantiating views.
+     * @param dataSource The source to load suggestions from.
+     */
+    public RemoteArrayAdapter(Context context, int resource, DataSource<T> dataSource) {
+        this(context, resource, 0, dataSource);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param context            The current context.
+     * @param resource           The resource ID for a layout file containing a layout to use when
+     *                           instantiating views.
+     * @param textViewResourceId The id of the TextView within the layout resource to be populated
+     * @param dataSource         The source to load suggestions from.
+     */
+    public RemoteArrayAdapter(Context context, int resource, int textViewResourceId, DataSource<T> dataSource) {
+        super(context, resource, textViewResourceId, new ArrayList<T>());
+        this.dataSource = dataSource;
+    }
+
+    /**
+     * Sets how many results to request from the data source at a time. Defaults to 20
+     */
+    @SuppressWarnings("unused")
+    public void setPageSize(int size) {
+        pageSize = size;
+    }
+
+    /**
+     * @return true if the data source has more results for the current constraint
+     */
+    @SuppressWarnings("unused")
+    public boolean hasMore() {
+        return hasMore;
+    }
+
+    /**
+     * Request the next page of results for the current constraint and append it to the adapter.
+     * Does nothing if a page is already loading or there are no more results.
+     */
+    @SuppressWarnings("unused")
+    public void loadMore() {
+        if (!hasMore || pageQuery != null || constraint == null) return;
+
+        pageQuery = new PageQuery(constraint, filter().generation());
+        pageQuery.start(dataSource, loadedCount, pageSize);
+    }
+
+    @Override
+    public Filter getFilter() {
+        return filter();
+    }
+
+    private RemoteFilter filter() {
+        if (filter == null) {
+            filter = new RemoteFilter();
+        }
+        return filter;
+    }
+
+    private void appendObjects(List<T> objects) {
+        if (objects.isEmpty()) return;
+
+        setNotifyOnChange(false);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            api11AddAll(objects);
+        } else {
+            for (T object : objects) {
+                add(object);
+            }
+        }
+        notifyDataSetChanged();
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private void api11AddAll(Collection<T> objects) {
+        addAll(objects);
+    }
+
+    /**
+     * Filter method used on the results from the data source. Return true if the object should
+     * remain in the list
+     *
+     * @param obj  object we are checking for inclusion in the adapter
+     * @param mask current text in the edit text we are completing against
+     * @return true if we should keep the item in the adapter
+     */
+    protected boolean keepObject(T obj, String mask) {
+        return true;
+    }
+
+    /**
+     * Loads suggestions, usually from a server
+     */
+    public interface DataSource<T> {
+        /**
+         * Start loading suggestions for a constraint. This may be called on the main thread, so it
+         * should not block. Deliver the results with the callback from any thread.
+         *
+         * @param constraint current text in the edit text we are completing against
+         * @param offset     number of results already loaded for the constraint
+         * @param limit      maximum number of results to load
+         * @param callback   receives the results
+         * @return a handle to cancel the request with, may be null if it can't be cancelled
+         */
+        Request fetch(String constraint, int offset, int limit, Callback<T> callback);
+    }
+
+    public interface Callback<T> {
+        /**
+         * @param results the loaded results, in display order
+         * @param hasMore true if there are more results after these
+         */
+        void onResults(List<T> results, boolean hasMore);
+
+        void onError(Throwable error);
+    }
+
+    public interface Request {
+        void cancel();
+    }
+
+    /**
+     * A single fetch from the data source. Results are post filtered with keepObject on the
+     * thread that delivers them, and ignored once the query is cancelled.
+     */
+    private abstract class Query implements Callback<T> {
+        final String constraint;
+        int loaded = 0;
+        private Request request;
+        private boolean finished = false;
+
+        Query(String constraint) {
+            this.constraint = constraint;
+        }
+
+        void start(DataSource<T> source, int offset, int limit) {
+            Request r = source.fetch(constraint, offset, limit, this);
+            synchronized (this) {
+                request = r;
+                if (finished && r != null) {
+                    //Cancelled before the data source returned
+                    r.cancel();
+                }
+            }
+        }
+
+        void cancel() {
+            Request r;
+            synchronized (this) {
+                if (finished) return;
+                finished = true;
+                r = request;
+            }
+            if (r != null) {
+                r.cancel();
+            }
+            onFinished(null, false);
+        }
+
+        @Override
+        public void onResults(List<T> results, boolean more) {
+            synchronized (this) {
+                if (finished) return;
+                finished = true;
+            }
+
+            List<T> kept = new ArrayList<>();
+            if (results != null) {
+                loaded = results.size();
+                for (T object : results) {
+                    if (keepObject(object, constraint)) {
+                        kept.add(object);
+                    }
+                }
+            }
+            onFinished(kept, more);
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            synchronized (this) {
+                if (finished) return;
+                finished = true;
+            }
+            onFinished(Collections.<T>emptyList(), false);
+        }
+
+        /**
+         * @param kept the post filtered results, null if the query was cancelled
+         * @param more true if the data source has more results
+         */
+        abstract void onFinished(List<T> kept, boolean more);
+    }
+
+    /**
+     * Loads the next page for loadMore and appends it on the main thread
+     */
+    private class PageQuery extends Query {
+        private final int generation;
+
+        PageQuery(String constraint, int generation) {
+            super(constraint);
+            this.generation = generation;
+        }
+
+        @Override
+        void onFinished(final List<T> kept, final boolean more) {
+            if (kept == null) return;
+
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (pageQuery != PageQuery.this) return;
+                    pageQuery = null;
+                    //The constraint changed while we were loading
+                    if (generation != filter().generation()) return;
+
+                    loadedCount += loaded;
+                    hasMore = more;
+                    appendObjects(kept);
+                }
+            });
+        }
+    }
+
+    /**
+     * Loads the first page for a constraint and displays it on the main thread, unless a newer
+     * constraint started filtering in the meantime
+     */
+    private class FilterQuery extends Query {
+        private final int generation;
+        private volatile boolean done = false;
+
+        FilterQuery(String constraint, int generation) {
+            super(constraint);
+            this.generation = generation;
+        }
+
+        boolean isDone() {
+            return done;
+        }
+
+        @Override
+        void onFinished(final List<T> kept, final boolean more) {
+            done = true;
+            if (kept == null) return;
+
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (generation != filter().generation()) return;
+                    showResults(constraint, kept, loaded, more);
+                }
+            });
+        }
+    }
+
+    private void showResults(String newConstraint, List<T> objects, int loaded, boolean more) {
+        if (pageQuery != null) {
+            pageQuery.cancel();
+            pageQuery = null;
+        }
+        constraint = newConstraint;
+        loadedCount = loaded;
+        hasMore = more;
+
+        setNotifyOnChange(false);
+        clear();
+        if (objects.isEmpty()) {
+            notifyDataSetInvalidated();
+            setNotifyOnChange(true);
+        } else {
+            appendObjects(objects);
+        }
+    }
+
+    /**
+     * Starts a query for each constraint without waiting for it. The results are displayed by
+     * the query when they arrive, and the drop down updates from the adapter change.
+     * <p/>
+     * Filter drops queued constraints before they are filtered, and starting a new query cancels
+     * the previous one, so only the latest constraint is ever displayed.
+     */
+    private class RemoteFilter extends Filter {
+        private volatile int generation = 0;
+
+        //Only touched from the filter thread
+        private FilterQuery current;
+
+        int generation() {
+            return generation;
+        }
+
+        @Override
+        protected FilterResults performFiltering(CharSequence chars) {
+            FilterResults result = new FilterResults();
+            String mask = chars == null ? "" : chars.toString();
+
+            //Filtering the same text again shares the query that's already running
+            if (current != null && !current.isDone() && current.constraint.equals(mask)) {
+                return result;
+            }
+
+            generation++;
+            if (current != null) {
+                current.cancel();
+                current = null;
+            }
+
+            if (mask.length() == 0) {
+                result.values = Collections.<T>emptyList();
+                return result;
+            }
+
+            current = new FilterQuery(mask, generation);
+            current.start(dataSource, 0, pageSize);
+            return result;
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        protected void publishResults(CharSequence constraint, FilterResults results) {
+            if (results.values == null) {
+                //Still loading, keep the drop down as it is until the results arrive
+                results.count = getCount();
+                return;
+            }
+            showResults(null, (List<T>) results.values, 0, false);
+        }
+    }
+}
\ No newline at end of file
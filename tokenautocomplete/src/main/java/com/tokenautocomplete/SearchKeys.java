@@ -0,0 +1,70 @@
+package com.tokenautocomplete;
+
+import java.text.Normalizer;
+import java.util.Locale;
+
+/**
+ * Normalizes search keys and masks so they can be compared without allocating
+ * <p/>
+ * Keys are normalized once per object and the mask once per filter. Normalizing folds case
+ * and strips accents, so typing "e" finds keys with an accented e as well.
+ */
+final class SearchKeys {
+
+    private SearchKeys() {}
+
+    /**
+     * Normalize a key or mask so both sides of a comparison match the same way
+     *
+     * @param text text to normalize
+     * @return lower case text without accents
+     */
+    static String normalize(String text) {
+        String lower = text.toLowerCase(Locale.getDefault());
+
+        boolean ascii = true;
+        for (int i = 0; i < lower.length() && ascii; i++) {
+            ascii = lower.charAt(i) < 0x80;
+        }
+        if (ascii) return lower;
+
+        //Split accented characters into the base character and its combining marks, then drop the marks
+        String decomposed = Normalizer.normalize(lower, Normalizer.Form.NFD);
+        StringBuilder stripped = new StringBuilder(decomposed.length());
+        for (int i = 0; i < decomposed.length(); i++) {
+            char c = decomposed.charAt(i);
+            if (Character.getType(c) != Character.NON_SPACING_MARK) {
+                stripped.append(c);
+            }
+        }
+        return stripped.toString();
+    }
+
+    /**
+     * Normalize each of the keys
+     *
+     * @param keys keys to normalize, may be null or contain nulls
+     * @return normalized keys, never null
+     */
+    static String[] normalize(String[] keys) {
+        if (keys == null) return new String[0];
+
+        String[] normalized = new String[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            normalized[i] = keys[i] == null ? "" : normalize(keys[i]);
+        }
+        return normalized;
+    }
+
+    /**
+     * @param keys normalized keys
+     * @param mask normalized mask
+     * @return true if any of the keys start with the mask
+     */
+    static boolean matches(String[] keys, String mask) {
+        for (String key : keys) {
+            if (key.startsWith(mask)) return true;
+        }
+        return false;
+    }
+}
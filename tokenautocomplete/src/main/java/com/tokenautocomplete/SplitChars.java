@@ -0,0 +1,108 @@
+package com.tokenautocomplete;
+
+import java.util.Arrays;
+
+/**
+ * Set of split characters for tokenizing, checked without boxing or allocating
+ * <p/>
+ * ASCII characters are looked up in a bitset, anything else with a binary search
+ * of a sorted array.
+ */
+final class SplitChars {
+
+    private final long[] ascii = new long[2];
+    private final char[] other;
+    private final char terminator;
+
+    SplitChars(char[] chars) {
+        int otherCount = 0;
+        for (char c : chars) {
+            if (c >= 128) otherCount++;
+        }
+
+        other = new char[otherCount];
+        int o = 0;
+        for (char c : chars) {
+            if (c < 128) {
+                ascii[c >> 6] |= 1L << (c & 63);
+            } else {
+                other[o++] = c;
+            }
+        }
+        Arrays.sort(other);
+
+        //Try not to use a space as a token character
+        if (chars.length == 0) {
+            terminator = ',';
+        } else {
+            terminator = chars.length > 1 && chars[0] == ' ' ? chars[1] : chars[0];
+        }
+    }
+
+    boolean contains(char c) {
+        if (c < 128) {
+            return (ascii[c >> 6] & (1L << (c & 63))) != 0;
+        }
+        return other.length > 0 && Arrays.binarySearch(other, c) >= 0;
+    }
+
+    /**
+     * @return the character to end a token with
+     */
+    char terminator() {
+        return terminator;
+    }
+
+    /**
+     * @return true if the text already ends with a split char, ignoring trailing spaces
+     */
+    boolean isTerminated(CharSequence text) {
+        int i = text.length();
+
+        while (i > 0 && text.charAt(i - 1) == ' ') {
+            i--;
+        }
+
+        return i > 0 && contains(text.charAt(i - 1));
+    }
+
+    /**
+     * @return the text ending with the terminator and a space, unless it already ends with a
+     * split char
+     */
+    String terminate(String text) {
+        if (isTerminated(text)) {
+            return text;
+        }
+        return text + terminator + " ";
+    }
+
+    /**
+     * @return the start of the token at the cursor, after the previous split char and any spaces
+     */
+    int findTokenStart(CharSequence text, int cursor) {
+        int i = cursor;
+
+        while (i > 0 && !contains(text.charAt(i - 1))) {
+            i--;
+        }
+        while (i < cursor && text.charAt(i) == ' ') {
+            i++;
+        }
+
+        return i;
+    }
+
+    /**
+     * @return the position of the next split char at or after the cursor, or the text length
+     */
+    int findTokenEnd(CharSequence text, int cursor) {
+        int len = text.length();
+        for (int i = cursor; i < len; i++) {
+            if (contains(text.charAt(i))) {
+                return i;
+            }
+        }
+        return len;
+    }
+}
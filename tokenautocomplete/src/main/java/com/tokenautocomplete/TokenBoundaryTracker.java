@@ -0,0 +1,71 @@
+package com.tokenautocomplete;
+
+/**
+ * Remembers where the token being typed starts so finding it again doesn't scan backwards
+ * from the cursor on every keystroke
+ * <p/>
+ * We know there is no split char between the token start and a checked end. Asking for the
+ * token start only scans the text between the checked end and the cursor. Edits after the
+ * token start move the checked end back, and edits before it make us scan from the cursor
+ * again next time.
+ */
+class TokenBoundaryTracker {
+
+    private final SplitChars splitChars;
+    //Position after the split char before the token, -1 if we need to scan again
+    private int tokenStart = -1;
+    private int checkedEnd = -1;
+
+    TokenBoundaryTracker(SplitChars splitChars) {
+        this.splitChars = splitChars;
+    }
+
+    /**
+     * Same result as SplitChars.findTokenStart
+     */
+    int findTokenStart(CharSequence text, int cursor) {
+        if (tokenStart < 0 || cursor < tokenStart || checkedEnd > text.length()) {
+            tokenStart = splitChars.findTokenStart(text, cursor);
+            //findTokenStart skips spaces after the split char, but we need to know where it is
+            while (tokenStart > 0 && !splitChars.contains(text.charAt(tokenStart - 1))) {
+                tokenStart--;
+            }
+        } else {
+            //Only the new text since we last looked can contain a split char
+            for (int i = Math.min(checkedEnd, cursor); i < cursor; i++) {
+                if (splitChars.contains(text.charAt(i))) {
+                    tokenStart = i + 1;
+                }
+            }
+        }
+        checkedEnd = cursor;
+
+        int i = tokenStart;
+        while (i < cursor && text.charAt(i) == ' ') {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * Update for a change to the text, with the arguments from TextWatcher.beforeTextChanged.
+     * Only the start matters, the text before it stays the same.
+     */
+    void beforeTextChanged(int start, int count, int after) {
+        if (tokenStart < 0) return;
+
+        if (start < tokenStart) {
+            //The split char before the token or the text before it changed
+            tokenStart = -1;
+            checkedEnd = -1;
+        } else if (start < checkedEnd) {
+            //The text before the change is still free of split chars
+            checkedEnd = start;
+        }
+    }
+
+    void reset() {
+        tokenStart = -1;
+        checkedEnd = -1;
+    }
+}
@@ -0,0 +1,26 @@
+package com.tokenautocomplete;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Writes token objects to the saved state of a TokenCompleteTextView and reads them back.
+ * Writing just the fields you need is much smaller and faster than Java serialization.
+ * <p/>
+ * Set one with TokenCompleteTextView.setTokenCodec before the state is restored, for example
+ * in the constructor of your view.
+ */
+public interface TokenCodec {
+    /**
+     * @param token the token object to save
+     * @param out   where to write it
+     */
+    void write(Object token, DataOutput out) throws IOException;
+
+    /**
+     * @param in where to read the token from, positioned where write started writing it
+     * @return the token object
+     */
+    Object read(DataInput in) throws IOException;
+}
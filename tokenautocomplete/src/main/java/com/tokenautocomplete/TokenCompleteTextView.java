@@ -3,14 +3,19 @@ package com.tokenautocomplete;
 import android.annotation.TargetApi;
 import android.content.Context;
 import android.content.res.ColorStateList;
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Paint;
 import android.graphics.Rect;
 import android.graphics.Typeface;
 import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.Parcel;
 import android.os.Parcelable;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
+import android.support.v4.util.LruCache;
 import android.text.Editable;
 import android.text.InputFilter;
 import android.text.InputType;
@@ -27,6 +32,7 @@ import android.text.style.ReplacementSpan;
 import android.text.style.TextAppearanceSpan;
 import android.util.AttributeSet;
 import android.util.TypedValue;
+import android.view.Choreographer;
 import android.view.KeyEvent;
 import android.view.MotionEvent;
 import android.view.View;
@@ -43,7 +49,14 @@ import android.widget.TextView;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.concurrent.Executor;
 
 /**
  * Gmail style auto complete view with easy token customization
@@ -57,12 +70,18 @@ public abstract class TokenCompleteTextView extends MultiAutoCompleteTextView im
 
 
     protected char[] splitChar = {','};
+    private char[] splitCharsSource;
+    private SplitChars splitChars;
     boolean inInvalidate = false;
     private Tokenizer tokenizer;
+    private TokenBoundaryTracker boundaryTracker;
+    private CharSequence trackedText;
     private Object selectedObject;
     private TokenListener listener;
     private TokenSpanWatcher spanWatcher;
-    private ArrayList<Object> objects;
+    private TokenSpanIndex tokenSpans = new TokenSpanIndex();
+    private CountSpan countSpan;
+    private TokenObjects objects;
     private TokenDeleteStyle deletionStyle = TokenDeleteStyle._Parent;
     private TokenClickStyle tokenClickStyle = TokenClickStyle.None;
     private TokenImageSpan selectedToken;
@@ -73,8 +92,47 @@ public abstract class TokenCompleteTextView extends MultiAutoCompleteTextView im
     private boolean initialized = false;
     private boolean performBestGuess = true;
     private boolean savingState = false;
+    private boolean batchingTokens = false;
     private boolean shouldFocusNext = false;
     private boolean allowCollapse = true;
+    private boolean virtualizeCollapse = false;
+    private boolean hidingTokens = false;
+    //Tokens were queued while collapsed without a +x, build the first line on the next layout
+    private boolean collapsePending = false;
+    //Restored objects and tokens hidden by a collapse we haven't built spans for yet, they go
+    //after all the other tokens
+    private ArrayList<Object> unbuiltObjects = new ArrayList<>();
+    private FilterCoalesceStyle filterCoalesceStyle = FilterCoalesceStyle.Immediate;
+    private long filterDelay = 0;
+    private LruCache<TokenImageSpan, Bitmap> tokenBitmaps;
+    private ArrayList<View> recycledViews = new ArrayList<>();
+    private TokenDiagnostics diagnostics;
+    private TokenCodec tokenCodec;
+    private Executor preparationExecutor;
+    private int preparationBatchSize;
+    private volatile int preparationGeneration = 0;
+    //Objects from addObjects still being prepared, only touched on the main thread
+    private IdentityHashMap<Object, Integer> preparingObjects = new IdentityHashMap<>();
+    private Handler mainHandler = new Handler(Looper.getMainLooper());
+    private int insertionFrameBudget = 0;
+    private int insertionChunkSize = 8;
+    private boolean insertionScheduled = false;
+    private Object insertionFrameCallback;
+    private int filterGeneration = 0;
+    private int recycledViewLimit = 0;
+    private long lastFilterTime = 0;
+    private CharSequence pendingConstraint;
+    private final Runnable pendingFilter = new Runnable() {
+        @Override
+        public void run() {
+            CharSequence constraint = pendingConstraint;
+            pendingConstraint = null;
+            //The user may have deleted the text while we were waiting
+            if (constraint != null && enoughToFilter()) {
+                filter(constraint);
+            }
+        }
+    };
 
     public TokenCompleteTextView(Context context) {
         super(context);
@@ -110,7 +168,7 @@ public abstract class TokenCompleteTextView extends MultiAutoCompleteTextView im
 
     private void init() {
         setTokenizer(new MultiAutoCompleteTextView.CommaTokenizer());
-        objects = new ArrayList<>();
+        objects = new TokenObjects();
         Editable text = getText();
         assert null != text;
         spanWatcher = new TokenSpanWatcher();
@@ -133,9 +191,7 @@ public abstract class TokenCompleteTextView extends MultiAutoCompleteTextView im
             public CharSequence filter(CharSequence source, int start, int end, Spanned dest, int dstart, int dend) {
                 //Detect split characters, remove them and complete the current token instead
                 if (source.length() == 1) {
-                    boolean isSplitChar = false;
-                    for (char c : splitChar) isSplitChar = source.charAt(0) == c || isSplitChar;
-                    if (isSplitChar) {
+                    if (splitChars().contains(source.charAt(0))) {
                         performCompletion();
                         return "";
                     }
@@ -155,22 +211,105 @@ public abstract class TokenCompleteTextView extends MultiAutoCompleteTextView im
         initialized = true;
     }
 
+    @Override
+    protected void performFiltering(@NonNull CharSequence text, int keyCode) {
+        //Same as MultiAutoCompleteTextView, but with our tracked token start
+        if (enoughToFilter()) {
+            int end = getSelectionEnd();
+            performFiltering(text, findTokenStart(text, end), end, keyCode);
+        } else {
+            dismissDropDown();
+            Filter f = getFilter();
+            if (f != null) {
+                f.filter(null);
+            }
+        }
+    }
+
     @Override
     protected void performFiltering(@NonNull CharSequence text, int start, int end,
                                     int keyCode) {
         if (start < prefix.length()) {
             start = prefix.length();
         }
+        CharSequence constraint = text.subSequence(start, end);
+
+        long delay;
+        switch (filterCoalesceStyle) {
+            case Debounce:
+                delay = filterDelay;
+                break;
+            case Throttle:
+                delay = Math.max(0, lastFilterTime + filterDelay - SystemClock.uptimeMillis());
+                break;
+            case Immediate:
+            default:
+                delay = 0;
+        }
+
+        //Any constraint we haven't filtered yet is out of date now
+        removeCallbacks(pendingFilter);
+        pendingConstraint = null;
+        if (delay == 0) {
+            filter(constraint);
+        } else {
+            pendingConstraint = constraint;
+            postDelayed(pendingFilter, delay);
+        }
+    }
+
+    private void filter(CharSequence constraint) {
         Filter filter = getFilter();
         if (filter != null) {
-            filter.filter(text.subSequence(start, end), this);
+            lastFilterTime = SystemClock.uptimeMillis();
+            filterGeneration++;
+            Filter.FilterListener listener = this;
+            if (diagnostics != null) {
+                listener = new TimedFilterListener(filterGeneration);
+            }
+            if (filter instanceof AppFilter) {
+                //Lets the filter drop results for constraints we've already replaced
+                ((AppFilter) filter).filterLatest(constraint, listener);
+            } else {
+                filter.filter(constraint, listener);
+            }
         }
     }
 
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        removeCallbacks(pendingFilter);
+        pendingConstraint = null;
+    }
+
     @Override
     public void setTokenizer(Tokenizer t) {
         super.setTokenizer(t);
         tokenizer = t;
+
+        //We know how the tokenizers we provide find tokens, so we can track the token start
+        //instead of asking them to scan for it
+        trackedText = null;
+        if (t instanceof CharacterTokenizer) {
+            boundaryTracker = new TokenBoundaryTracker(((CharacterTokenizer) t).splitChars);
+        } else if (t != null && t.getClass() == MultiAutoCompleteTextView.CommaTokenizer.class) {
+            boundaryTracker = new TokenBoundaryTracker(new SplitChars(new char[]{','}));
+        } else {
+            boundaryTracker = null;
+        }
+    }
+
+    private int findTokenStart(CharSequence text, int cursor) {
+        if (boundaryTracker == null || text == null || text != getText()) {
+            return tokenizer.findTokenStart(text, cursor);
+        }
+
+        if (text != trackedText) {
+            boundaryTracker.reset();
+            trackedText = text;
+        }
+        return boundaryTracker.findTokenStart(text, cursor);
     }
 
     public void setDeletionStyle(TokenDeleteStyle dStyle) {
@@ -182,10 +321,115 @@ public abstract class TokenCompleteTextView extends MultiAutoCompleteTextView im
         tokenClickStyle = cStyle;
     }
 
+    /**
+     * Set the listener for added and removed tokens. If the listener is a TokenBatchListener,
+     * tokens added with addObjects or removed with clear are reported in one call.
+     */
     public void setTokenListener(TokenListener l) {
         listener = l;
     }
 
+    /**
+     * Sets how to save the token objects with the view state. Without a codec, the objects from
+     * getSerializableObjects are saved with Java serialization, which is slow and large with a
+     * lot of tokens.
+     * <p/>
+     * The codec has to be set before the state is restored, for example in your constructor,
+     * or onRestoreInstanceState throws an IllegalStateException.
+     */
+    @SuppressWarnings("unused")
+    public void setTokenCodec(TokenCodec codec) {
+        tokenCodec = codec;
+    }
+
+    /**
+     * Build the token views for addObjects on a background thread. getViewForObject is called
+     * on the executor, with a recycled view or null as the convertView. The ready tokens are
+     * added to the text in batches on the main thread, where the views are measured and drawn
+     * into bitmaps if setTokenBitmapCacheSize is on, so adding a lot of tokens doesn't block it.
+     * <p/>
+     * Defaults to null, which builds the tokens on the main thread. Only use this if your
+     * getViewForObject doesn't touch anything but the token view. Tokens from one addObjects call
+     * stay in order, use a single thread executor to keep several calls in order as well.
+     * <p/>
+     * addObjects is still posted like addObject, removeObject and clear, but its tokens only go
+     * in the text once they are ready, so a token from a later addObject call can show up
+     * before them. removeObject and clear also drop the tokens still being prepared.
+     *
+     * @param executor  where to prepare the token views, or null
+     * @param batchSize how many ready tokens to add to the text at a time
+     */
+    @SuppressWarnings("unused")
+    public void setTokenPreparationExecutor(Executor executor, int batchSize) {
+        preparationExecutor = executor;
+        preparationBatchSize = Math.max(1, batchSize);
+        //Tokens from the old executor can still arrive, they will be added as usual
+    }
+
+    /**
+     * Spread the tokens from addObjects over several frames instead of putting them all in the
+     * text at once. Each frame adds as many tokens as fit in the time budget, based on how long
+     * the previous frames took. The objects are in getObjects and reported to the listener right
+     * away, a TokenInsertionListener also hears about each slice as it is displayed.
+     * <p/>
+     * Defaults to 0, which adds all the tokens in one change. This has no effect while a token
+     * preparation executor is set.
+     *
+     * @param millis how long to spend adding tokens in each frame
+     */
+    @SuppressWarnings("unused")
+    public void setInsertionFrameBudget(int millis) {
+        insertionFrameBudget = Math.max(0, millis);
+    }
+
+    /**
+     * Set a listener for internal events, for example to log them while debugging or to
+     * measure performance. Pass null to turn it off, which is the default.
+     */
+    @SuppressWarnings("unused")
+    public void setDiagnostics(TokenDiagnostics d) {
+        diagnostics = d;
+    }
+
+    private void reportSpanCount() {
+        if (diagnostics != null) {
+            Editable text = getText();
+            if (text != null) {
+                diagnostics.onDiagnosticEvent(DiagnosticEvent.SpanCount, tokenSpans.all(text).size());
+            }
+        }
+    }
+
+    private void notifyTokensAdded(List<Object> tokens) {
+        if (listener == null || tokens.isEmpty()) return;
+
+        if (listener instanceof TokenBatchListener) {
+            ((TokenBatchListener) listener).onTokensAdded(tokens);
+        } else {
+            for (Object token : tokens) {
+                listener.onTokenAdded(token);
+            }
+        }
+    }
+
+    private void notifyTokensDisplayed(int displayed) {
+        if (listener instanceof TokenInsertionListener) {
+            ((TokenInsertionListener) listener).onTokensDisplayed(displayed, unbuiltObjects.size());
+        }
+    }
+
+    private void notifyTokensRemoved(List<Object> tokens) {
+        if (listener == null || tokens.isEmpty()) return;
+
+        if (listener instanceof TokenBatchListener) {
+            ((TokenBatchListener) listener).onTokensRemoved(tokens);
+        } else {
+            for (Object token : tokens) {
+                listener.onTokenRemoved(token);
+            }
+        }
+    }
+
     public void setPrefix(String p) {
         //Have to clear and set the actual text before saving the prefix to avoid the prefix filter
         prefix = "";
@@ -198,8 +442,37 @@ public abstract class TokenCompleteTextView extends MultiAutoCompleteTextView im
         updateHint();
     }
 
+    /**
+     * @return a copy of the token objects in the view, in the order they were added. Use
+     * addObject and removeObject to change the tokens.
+     */
     public List<Object> getObjects() {
-        return objects;
+        return objects.toList();
+    }
+
+    private boolean containsObject(Object object) {
+        return objects.contains(object);
+    }
+
+    private void addToObjects(Object object) {
+        objects.add(object);
+    }
+
+    /**
+     * Remove this exact instance, so a token whose hashCode changed since it was added still
+     * leaves the list
+     */
+    private boolean removeFromObjects(Object object) {
+        return objects.remove(object);
+    }
+
+    //Subclasses and restoring can replace splitChar directly, so check it's still the same array
+    private SplitChars splitChars() {
+        if (splitChars == null || splitCharsSource != splitChar) {
+            splitCharsSource = splitChar;
+            splitChars = new SplitChars(splitChar);
+        }
+        return splitChars;
     }
 
     public void setSplitChar(char[] splitChar) {
@@ -216,13 +489,76 @@ public abstract class TokenCompleteTextView extends MultiAutoCompleteTextView im
      * Sets whether to allow duplicate objects. If false, when the user selects
      * an object that's already in the view, the current text is just cleared.
      * <p/>
-     * Defaults to true. Requires that the objects implement equals() correctly.
+     * Defaults to true. Like the rest of the view, this requires that the objects implement
+     * equals() and hashCode() correctly, and that hashCode() doesn't change while the object
+     * is in the view.
      */
     @SuppressWarnings("unused")
     public void allowDuplicates(boolean allow) {
         allowDuplicates = allow;
     }
 
+    /**
+     * Sets how to filter while the user is typing quickly. With Debounce, we filter once the
+     * user stops typing for the delay. With Throttle, we filter at most once per delay. Both
+     * only ever filter the latest text.
+     * <p/>
+     * Defaults to Immediate, which filters on every change.
+     *
+     * @param style       how to coalesce filter requests
+     * @param delayMillis the debounce or throttle window
+     */
+    @SuppressWarnings("unused")
+    public void setFilterCoalesceStyle(FilterCoalesceStyle style, long delayMillis) {
+        filterCoalesceStyle = style;
+        filterDelay = delayMillis;
+    }
+
+    /**
+     * Sets how much memory to use for drawing tokens from cached bitmaps. Each token view is
+     * drawn into a bitmap once and the bitmap is drawn after that, instead of drawing the whole
+     * view hierarchy on every frame. The least recently drawn tokens are dropped when the cache
+     * is full.
+     * <p/>
+     * Defaults to 0, which draws the token views directly. A token is drawn again when it is
+     * selected or deselected, or when its view requests a layout. Other changes to the token view
+     * won't show until then.
+     *
+     * @param maxBytes the memory budget for token bitmaps
+     */
+    @SuppressWarnings("unused")
+    public void setTokenBitmapCacheSize(int maxBytes) {
+        if (tokenBitmaps != null) {
+            tokenBitmaps.evictAll();
+            tokenBitmaps = null;
+        }
+        if (maxBytes > 0) {
+            tokenBitmaps = new LruCache<TokenImageSpan, Bitmap>(maxBytes) {
+                @Override
+                protected int sizeOf(TokenImageSpan key, Bitmap value) {
+                    return value.getRowBytes() * value.getHeight();
+                }
+            };
+        }
+        invalidate();
+    }
+
+    /**
+     * Sets how many token views to keep for reuse after their tokens are removed. Kept views are
+     * passed back as the convertView to getViewForObject(Object, View) for new tokens.
+     * <p/>
+     * Defaults to 0, which doesn't keep any views.
+     *
+     * @param size the maximum number of views to keep
+     */
+    @SuppressWarnings("unused")
+    public void setRecycledViewPoolSize(int size) {
+        recycledViewLimit = Math.max(0, size);
+        while (recycledViews.size() > recycledViewLimit) {
+            recycledViews.remove(recycledViews.size() - 1);
+        }
+    }
+
     public void performBestGuess(boolean guess) {
         performBestGuess = guess;
     }
@@ -238,6 +574,18 @@ public abstract class TokenCompleteTextView extends MultiAutoCompleteTextView im
         allowCollapse = allow;
     }
 
+    /**
+     * Sets whether to take the tokens that don't fit on the first line out of the text while
+     * the view is collapsed. They stay in getObjects and are built again when the view gets
+     * focus, so a collapsed view with a lot of tokens lays out as fast as one with a few.
+     * <p/>
+     * Defaults to false.
+     */
+    @SuppressWarnings("unused")
+    public void virtualizeCollapse(boolean virtualize) {
+        virtualizeCollapse = virtualize;
+    }
+
     /**
      * A token view for the object
      *
@@ -246,6 +594,21 @@ public abstract class TokenCompleteTextView extends MultiAutoCompleteTextView im
      */
     abstract protected View getViewForObject(Object object);
 
+    /**
+     * A token view for the object, reusing the view of a removed token if possible. Override
+     * this and call setRecycledViewPoolSize to avoid inflating a new view for every token.
+     * <p/>
+     * Defaults to calling getViewForObject(Object) and ignoring the convertView
+     *
+     * @param object      the object selected by the user from the list
+     * @param convertView the view of a removed token to reuse, or null. It was returned by this
+     *                    method before, and is no longer selected
+     * @return a view to display a token in the text field for the object
+     */
+    protected View getViewForObject(Object object, View convertView) {
+        return getViewForObject(object);
+    }
+
     /**
      * Provides a default completion when the user hits , and there is no item in the completion
      * list
@@ -260,7 +623,7 @@ public abstract class TokenCompleteTextView extends MultiAutoCompleteTextView im
 
         Editable editable = getText();
         int end = getSelectionEnd();
-        int start = tokenizer.findTokenStart(editable, end);
+        int start = findTokenStart(editable, end);
         if (start < prefix.length()) {
             start = prefix.length();
         }
@@ -301,7 +664,7 @@ public abstract class TokenCompleteTextView extends MultiAutoCompleteTextView im
             return false;
         }
 
-        int start = tokenizer.findTokenStart(text, end);
+        int start = findTokenStart(text, end);
         if (start < prefix.length()) {
             start = prefix.length();
         }
@@ -411,8 +774,9 @@ public abstract class TokenCompleteTextView extends MultiAutoCompleteTextView im
             Editable text = getText();
             if (text == null) return handled;
 
-            TokenImageSpan[] spans = text.getSpans(0, text.length(), TokenImageSpan.class);
-            for (TokenImageSpan span : spans) {
+            List<TokenImageSpan> spans = tokenSpans.all(text);
+            for (int i = 0; i < spans.size(); i++) {
+                TokenImageSpan span = spans.get(i);
                 if (span.view.isSelected()) {
                     removeSpan(span);
                     handled = true;
@@ -443,11 +807,10 @@ public abstract class TokenCompleteTextView extends MultiAutoCompleteTextView im
             offset = getOffsetForPosition(x, y);
         }
 
-        if (offset != -1) {
-            TokenImageSpan[] links = text.getSpans(offset, offset, TokenImageSpan.class);
-
-            if (links.length > 0) {
-                return links[0];
+        if (offset != -1 && text != null) {
+            int first = tokenSpans.firstIn(text, offset, offset);
+            if (first < tokenSpans.endIn(text, offset, offset)) {
+                return tokenSpans.all(text).get(first);
             }
         }
 
@@ -547,8 +910,10 @@ public abstract class TokenCompleteTextView extends MultiAutoCompleteTextView im
             Editable text = getText();
             if (text != null) {
                 //Make sure if we are in a span, we select the spot 1 space after the span end
-                TokenImageSpan[] spans = text.getSpans(selStart, selEnd, TokenImageSpan.class);
-                for (TokenImageSpan span : spans) {
+                List<TokenImageSpan> spans = tokenSpans.all(text);
+                int end = tokenSpans.endIn(text, selStart, selEnd);
+                for (int i = tokenSpans.firstIn(text, selStart, selEnd); i < end; i++) {
+                    TokenImageSpan span = spans.get(i);
                     int spanEnd = text.getSpanEnd(span);
                     if (selStart <= spanEnd && text.getSpanStart(span) < selStart) {
                         if (spanEnd == text.length())
@@ -569,6 +934,34 @@ public abstract class TokenCompleteTextView extends MultiAutoCompleteTextView im
     protected void onLayout(boolean changed, int left, int top, int right, int bottom) {
         super.onLayout(changed, left, top, right, bottom);
         lastLayout = getLayout(); //Used for checking text positions
+
+        if (collapsePending && right - left > 0) {
+            collapsePending = false;
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    Editable text = getText();
+                    if (text != null && !isFocused() && allowCollapse) {
+                        collapseTokens(text);
+                    }
+                }
+            });
+        }
+
+        //Tokens restored before we had a size still need to be displayed
+        Editable text = getText();
+        if (!unbuiltObjects.isEmpty() && text != null && tokenSpans.all(text).isEmpty()
+                && right - left > 0) {
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    Editable text = getText();
+                    if (!unbuiltObjects.isEmpty() && text != null && tokenSpans.all(text).isEmpty()) {
+                        handleFocus(isFocused());
+                    }
+                }
+            });
+        }
     }
 
     protected void handleFocus(boolean hasFocus) {
@@ -579,66 +972,368 @@ public abstract class TokenCompleteTextView extends MultiAutoCompleteTextView im
             setSingleLine(true);
 
             Editable text = getText();
-            if (text != null && lastLayout != null) {
-                //Display +x thingy if appropriate
-                int lastPosition = lastLayout.getLineVisibleEnd(0);
-                TokenImageSpan[] tokens = text.getSpans(0, lastPosition, TokenImageSpan.class);
-                int count = objects.size() - tokens.length;
-                if (count > 0) {
-                    lastPosition++;
-                    CountSpan cs = new CountSpan(count, getContext(), getCurrentTextColor(),
-                            (int) getTextSize(), (int) maxTextWidth());
-                    text.insert(lastPosition, cs.text);
+            if (text != null) {
+                collapseTokens(text);
+            }
+        }
+        else
+        {
+            focusOnField();
+        }
+    }
 
-                    float newWidth = Layout.getDesiredWidth(text, 0,
-                            lastPosition + cs.text.length(), lastLayout.getPaint());
-                    //If the +x span will be moved off screen, move it one token in
-                    if (newWidth > maxTextWidth()) {
-                        text.delete(lastPosition, lastPosition + cs.text.length());
+    /**
+     * Build the tokens that fit on the first line and display the +x count for the rest
+     */
+    private void collapseTokens(Editable text) {
+        //Start over if we were already collapsed, but only build the restored and hidden tokens
+        //that fit on the first line
+        removeCountSpan(text);
+        buildFirstLine(text);
+
+        if (lastLayout != null) {
+            //Display +x thingy if appropriate
+            int lastPosition = lastLayout.getLineVisibleEnd(0);
+            int firstVisible = tokenSpans.firstIn(text, 0, lastPosition);
+            int endVisible = tokenSpans.endIn(text, 0, lastPosition);
+            int count = objects.size() - (endVisible - firstVisible);
+            if (count > 0) {
+                lastPosition++;
+                CountSpan cs = new CountSpan(count, getContext(), getCurrentTextColor(),
+                        (int) getTextSize(), (int) maxTextWidth());
+                text.insert(lastPosition, cs.text);
+
+                float newWidth = Layout.getDesiredWidth(text, 0,
+                        lastPosition + cs.text.length(), lastLayout.getPaint());
+                //If the +x span will be moved off screen, move it one token in
+                if (newWidth > maxTextWidth()) {
+                    text.delete(lastPosition, lastPosition + cs.text.length());
+
+                    if (endVisible > firstVisible) {
+                        TokenImageSpan token = tokenSpans.all(text).get(endVisible - 1);
+                        lastPosition = text.getSpanStart(token);
+                        cs.setCount(count + 1);
+                    } else {
+                        lastPosition = prefix.length();
+                    }
 
-                        if (tokens.length > 0) {
-                            TokenImageSpan token = tokens[tokens.length - 1];
-                            lastPosition = text.getSpanStart(token);
-                            cs.setCount(count + 1);
-                        } else {
-                            lastPosition = prefix.length();
-                        }
+                    text.insert(lastPosition, cs.text);
+                }
 
-                        text.insert(lastPosition, cs.text);
-                    }
+                text.setSpan(cs, lastPosition, lastPosition + cs.text.length(), Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+                countSpan = cs;
 
-                    text.setSpan(cs, lastPosition, lastPosition + cs.text.length(), Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+                if (virtualizeCollapse) {
+                    hideTokensAfter(text, lastPosition + cs.text.length());
                 }
             }
+        }
+    }
+
+    private void focusOnField()
+    {
+        Editable text = getText();
+        if (text != null) {
+            expandTokens(text);
+
+            if (hintVisible) {
+                setSelection(prefix.length());
+            } else {
+                setSelection(text.length());
+            }
+
+            if (text.getSpanStart(spanWatcher) < 0) {
+                //Someone removes watchers? I'm pretty sure this isn't in this code... -mgod
+                text.setSpan(spanWatcher, 0, text.length(), Spanned.SPAN_INCLUSIVE_INCLUSIVE);
+            }
+        }
+    }
 
+    /**
+     * Remove the +x count and build the restored and hidden tokens behind it
+     */
+    private void expandTokens(Editable text) {
+        removeCountSpan(text);
+        if (insertionFrameBudget > 0) {
+            scheduleInsertion();
+        } else {
+            buildUnbuiltTokens(text, Integer.MAX_VALUE);
+        }
+    }
+
+    /**
+     * @return where the next restored token goes, after the last token in the text
+     */
+    private int unbuiltPosition(Editable text) {
+        List<TokenImageSpan> spans = tokenSpans.all(text);
+        if (spans.isEmpty()) {
+            return Math.min(prefix.length(), text.length());
+        }
+        //Add 1 to the end because we put a " " at the end of the spans when adding them
+        return Math.min(text.length(), text.getSpanEnd(spans.get(spans.size() - 1)) + 1);
+    }
+
+    private void buildUnbuiltTokens(Editable text, float maxWidth) {
+        buildUnbuiltTokens(text, maxWidth, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Build spans for restored tokens, stopping after the first one that doesn't fit in the
+     * width. They are already in objects, so they are not reported as added.
+     */
+    private void buildUnbuiltTokens(Editable text, float maxWidth, int maxCount) {
+        if (unbuiltObjects.isEmpty()) return;
+
+        //Before the +x count they would fill the first line
+        if (countSpan != null && text.getSpanStart(countSpan) >= 0) {
+            buildCollapsedTokens(text);
+            return;
+        }
+
+        int position = unbuiltPosition(text);
+        SpannableStringBuilder ssb = new SpannableStringBuilder();
+        ArrayList<TokenImageSpan> built = new ArrayList<>();
+        int count = 0;
+        float width = 0;
+        if (maxWidth != Integer.MAX_VALUE) {
+            width = Layout.getDesiredWidth(text, 0, position, getPaint());
+        }
+        while (count < unbuiltObjects.size() && count < maxCount && width <= maxWidth) {
+            int start = ssb.length();
+            built.add(appendUnbuiltToken(ssb, unbuiltObjects.get(count)));
+            count++;
+
+            if (maxWidth != Integer.MAX_VALUE) {
+                width += Layout.getDesiredWidth(ssb, start, ssb.length(), getPaint());
+            }
+        }
+        if (count == 0) return;
+
+        unbuiltObjects.subList(0, count).clear();
+        hidingTokens = true;
+        try {
+            text.insert(position, ssb);
+        } finally {
+            hidingTokens = false;
+        }
+        for (TokenImageSpan span : built) {
+            tokenSpans.add(text, span);
+        }
+        notifyTokensDisplayed(count);
+    }
+
+    private TokenImageSpan appendUnbuiltToken(SpannableStringBuilder ssb, Object object) {
+        SpannableStringBuilder tokenText = buildSpannableForText("");
+        TokenImageSpan tokenSpan = buildSpanForObject(object);
+        int start = ssb.length();
+        ssb.append(tokenText);
+        ssb.setSpan(tokenSpan, start, start + tokenText.length() - 1, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        return tokenSpan;
+    }
+
+    /**
+     * Build all the unbuilt tokens of a collapsed view behind the tokens past the +x count.
+     * They are already counted in the +x.
+     */
+    private void buildCollapsedTokens(Editable text) {
+        SpannableStringBuilder ssb = new SpannableStringBuilder();
+        ArrayList<TokenImageSpan> built = new ArrayList<>(unbuiltObjects.size());
+        for (Object object : unbuiltObjects) {
+            built.add(appendUnbuiltToken(ssb, object));
+        }
+        int count = built.size();
+        unbuiltObjects.clear();
+
+        int position = Math.max(unbuiltPosition(text), text.getSpanEnd(countSpan));
+        hidingTokens = true;
+        try {
+            text.insert(position, ssb);
+        } finally {
+            hidingTokens = false;
+        }
+        for (TokenImageSpan span : built) {
+            tokenSpans.add(text, span);
+        }
+        spanWatcher.updateCountSpan();
+        notifyTokensDisplayed(count);
+    }
+
+    /**
+     * Build the next slice of unbuilt tokens on the next frame
+     */
+    private void scheduleInsertion() {
+        if (insertionScheduled || unbuiltObjects.isEmpty()) return;
+
+        insertionScheduled = true;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            api16PostFrameCallback();
+        } else {
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    insertNextSlice();
+                }
+            });
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private void api16PostFrameCallback() {
+        //Typed as Object so older versions never load the Choreographer classes
+        if (insertionFrameCallback == null) {
+            insertionFrameCallback = new Choreographer.FrameCallback() {
+                @Override
+                public void doFrame(long frameTimeNanos) {
+                    insertNextSlice();
+                }
+            };
+        }
+        Choreographer.getInstance().postFrameCallback((Choreographer.FrameCallback) insertionFrameCallback);
+    }
+
+    private void insertNextSlice() {
+        insertionScheduled = false;
+        Editable text = getText();
+        if (text == null || unbuiltObjects.isEmpty() || insertionFrameBudget <= 0) return;
+        //A collapsed view only builds its first line, the rest waits for focus
+        if (!isFocused() && allowCollapse && countSpan != null) return;
+
+        int count = Math.min(insertionChunkSize, unbuiltObjects.size());
+        long start = System.nanoTime();
+        buildUnbuiltTokens(text, Integer.MAX_VALUE, count);
+        long elapsed = Math.max(1, System.nanoTime() - start);
+
+        //Size the next slice from how long this one took, but don't grow too fast in case
+        //this slice was unusually cheap
+        long budget = insertionFrameBudget * 1000000L;
+        insertionChunkSize = (int) Math.max(1, Math.min(count * 2L, count * budget / elapsed));
+
+        reportSpanCount();
+        scheduleInsertion();
+    }
+
+    /**
+     * Put the objects in objects right away, then build their spans a slice per frame
+     */
+    private void queueObjects(List<Object> newObjects) {
+        Editable text = getText();
+        if (text == null) return;
+
+        ArrayList<Object> added = new ArrayList<>();
+        HashSet<Object> addedSet = new HashSet<>();
+        for (Object object : newObjects) {
+            if (object == null) continue;
+            if (!allowDuplicates && (containsObject(object) || !addedSet.add(object))) continue;
+
+            addToObjects(object);
+            unbuiltObjects.add(object);
+            added.add(object);
+        }
+        if (added.isEmpty()) return;
+
+        if (isFocused() || !allowCollapse) {
+            scheduleInsertion();
+        } else if (countSpan != null && text.getSpanStart(countSpan) >= 0) {
+            //They wait behind the +x with the tokens that didn't fit on the first line
+            spanWatcher.updateCountSpan();
+        } else {
+            //Show the ones that fit on the first line and the +x count once we are laid out
+            collapsePending = true;
+            requestLayout();
+        }
+        notifyTokensAdded(added);
+    }
+
+    /**
+     * Build the restored tokens needed to fill the first line of a collapsed view
+     */
+    private void buildFirstLine(Editable text) {
+        float maxWidth = maxTextWidth();
+        if (maxWidth > 0) {
+            buildUnbuiltTokens(text, maxWidth);
+        }
+    }
+
+    /**
+     * Remove the +x count, the tokens behind it are built by buildUnbuiltTokens
+     */
+    private void removeCountSpan(Editable text) {
+        if (countSpan == null) return;
+
+        CountSpan count = countSpan;
+        countSpan = null;
+        int countStart = text.getSpanStart(count);
+        if (countStart >= 0) {
+            text.delete(countStart, text.getSpanEnd(count));
+            text.removeSpan(count);
+        }
+    }
+
+    /**
+     * @return true if the view is collapsed with unbuilt tokens behind the +x count. Tokens
+     * added now go after them, so they have to wait to be built as well.
+     */
+    private boolean hasCollapsedTokens(Editable text) {
+        return !unbuiltObjects.isEmpty() && countSpan != null && text.getSpanStart(countSpan) >= 0;
+    }
+
+    /**
+     * Add objects behind the unbuilt tokens of a collapsed view, without building their spans
+     */
+    private void addCollapsedObjects(List<Object> newObjects) {
+        for (Object object : newObjects) {
+            addToObjects(object);
+            unbuiltObjects.add(object);
+        }
+        spanWatcher.updateCountSpan();
+        reportSpanCount();
+    }
+
+    /**
+     * Take the tokens after the position out of the text until the view is expanded again. Only
+     * their objects are kept, in front of the unbuilt ones, so they are built like restored
+     * tokens when the view expands.
+     */
+    private void hideTokensAfter(Editable text, int position) {
+        List<TokenImageSpan> spans = tokenSpans.all(text);
+        int first = tokenSpans.firstIn(text, position, text.length());
+        if (first >= spans.size()) return;
+
+        ArrayList<TokenImageSpan> hidden = new ArrayList<>(spans.subList(first, spans.size()));
+        ArrayList<Object> hiddenObjects = new ArrayList<>(hidden.size());
+        for (TokenImageSpan span : hidden) {
+            hiddenObjects.add(span.getToken());
+        }
+        unbuiltObjects.addAll(0, hiddenObjects);
 
+        //The tokens stay in objects, so don't report them as removed
+        hidingTokens = true;
+        try {
+            text.delete(position, unbuiltPosition(text));
+        } finally {
+            hidingTokens = false;
         }
-        else
-        {
-            focusOnField();
+        for (TokenImageSpan span : hidden) {
+            tokenSpans.remove(text, span);
+            span.discardBitmap();
+            recycleView(span.view);
         }
     }
 
-    private void focusOnField()
-    {
-        Editable text = getText();
-        if (text != null) {
-            CountSpan[] counts = text.getSpans(0, text.length(), CountSpan.class);
-            for (CountSpan count : counts) {
-                text.delete(text.getSpanStart(count), text.getSpanEnd(count));
-                text.removeSpan(count);
-            }
-
-            if (hintVisible) {
-                setSelection(prefix.length());
-            } else {
-                setSelection(text.length());
+    /**
+     * Remove unbuilt tokens for the object, since they aren't in the text for removeSpan
+     */
+    private void removeHiddenObject(Object object) {
+        for (int i = unbuiltObjects.size() - 1; i >= 0; i--) {
+            Object unbuilt = unbuiltObjects.get(i);
+            if (!unbuilt.equals(object)) continue;
+
+            unbuiltObjects.remove(i);
+            if (removeFromObjects(unbuilt)) {
+                spanWatcher.updateCountSpan();
             }
-
-            TokenSpanWatcher[] watchers = getText().getSpans(0, getText().length(), TokenSpanWatcher.class);
-            if (watchers.length == 0) {
-                //Someone removes watchers? I'm pretty sure this isn't in this code... -mgod
-                text.setSpan(spanWatcher, 0, text.length(), Spanned.SPAN_INCLUSIVE_INCLUSIVE);
+            if (listener != null) {
+                listener.onTokenRemoved(unbuilt);
             }
         }
     }
@@ -682,7 +1377,12 @@ public abstract class TokenCompleteTextView extends MultiAutoCompleteTextView im
         if (obj == null) {
             return null;
         }
-        View tokenView = getViewForObject(obj);
+        View convertView = null;
+        if (!recycledViews.isEmpty()) {
+            convertView = recycledViews.remove(recycledViews.size() - 1);
+            convertView.setSelected(false);
+        }
+        View tokenView = getViewForObject(obj, convertView);
         return new TokenImageSpan(tokenView, obj);
     }
 
@@ -697,8 +1397,12 @@ public abstract class TokenCompleteTextView extends MultiAutoCompleteTextView im
         TokenImageSpan tokenSpan = buildSpanForObject(selectedObject);
 
         Editable editable = getText();
+        if (editable != null) {
+            //Tokens still waiting for a frame come before this one, like in getObjects
+            buildUnbuiltTokens(editable, Integer.MAX_VALUE);
+        }
         int end = getSelectionEnd();
-        int start = tokenizer.findTokenStart(editable, end);
+        int start = findTokenStart(editable, end);
         if (start < prefix.length()) {
             start = prefix.length();
         }
@@ -710,7 +1414,7 @@ public abstract class TokenCompleteTextView extends MultiAutoCompleteTextView im
         if (editable != null) {
             if (tokenSpan == null) {
                 editable.replace(start, end, " ");
-            } else if (!allowDuplicates && objects.contains(tokenSpan.getToken())) {
+            } else if (!allowDuplicates && containsObject(tokenSpan.getToken())) {
                 editable.replace(start, end, " ");
             } else {
                 QwertyKeyListener.markAsReplaced(editable, start, end, original);
@@ -731,13 +1435,24 @@ public abstract class TokenCompleteTextView extends MultiAutoCompleteTextView im
             @Override
             public void run() {
                 if (object == null) return;
-                if (!allowDuplicates && objects.contains(object)) return;
+                if (!allowDuplicates && containsObject(object)) return;
+
+                Editable editable = getText();
+                if (editable != null && hasCollapsedTokens(editable)) {
+                    //Wait behind the +x with the tokens before it until the view expands
+                    addCollapsedObjects(Collections.singletonList(object));
+                    if (listener != null) {
+                        listener.onTokenAdded(object);
+                    }
+                    return;
+                }
 
                 SpannableStringBuilder ssb = buildSpannableForText(sourceText);
                 TokenImageSpan tokenSpan = buildSpanForObject(object);
 
-                Editable editable = getText();
                 if (editable != null) {
+                    //Restored tokens come before this one
+                    buildUnbuiltTokens(editable, Integer.MAX_VALUE);
                     int offset = editable.length();
                     //There might be a hint visible...
                     if (hintVisible) {
@@ -748,10 +1463,11 @@ public abstract class TokenCompleteTextView extends MultiAutoCompleteTextView im
                         editable.append(ssb);
                     }
                     editable.setSpan(tokenSpan, offset, offset + ssb.length() - 1, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+                    tokenSpans.add(editable, tokenSpan);
 
                     //In some cases, particularly the 1 to nth objects when not focused and restoring
                     //onSpanAdded doesn't get called
-                    if (!objects.contains(object)) {
+                    if (!containsObject(object)) {
                         spanWatcher.onSpanAdded(editable, tokenSpan, offset, offset + ssb.length() - 1);
                     }
 
@@ -771,8 +1487,232 @@ public abstract class TokenCompleteTextView extends MultiAutoCompleteTextView im
     }
 
     /**
-     * Remove an object from the token list. Will remove duplicates or do nothing if no object
-     * present in the view.
+     * Append several token objects to the object list at once. This is much faster than calling
+     * addObject for each object, the text only changes once and a TokenBatchListener is only
+     * called once.
+     *
+     * @param newObjects the objects to add to the displayed tokens
+     */
+    public void addObjects(Collection<?> newObjects) {
+        final ArrayList<Object> pending = new ArrayList<Object>(newObjects);
+        post(new Runnable() {
+            @Override
+            public void run() {
+                if (preparationExecutor != null) {
+                    prepareObjects(pending);
+                } else if (insertionFrameBudget > 0) {
+                    queueObjects(pending);
+                } else {
+                    insertObjects(pending);
+                }
+            }
+        });
+    }
+
+    private void insertObjects(List<Object> newObjects) {
+        if (getText() == null) return;
+
+        ArrayList<TokenImageSpan> spans = new ArrayList<>();
+        HashSet<Object> addedSet = new HashSet<>();
+        for (Object object : newObjects) {
+            if (object == null) continue;
+            if (!allowDuplicates && (containsObject(object) || !addedSet.add(object))) continue;
+
+            spans.add(buildSpanForObject(object));
+        }
+        insertSpans(spans);
+    }
+
+    /**
+     * Build the token views on the preparation executor, then add them in batches
+     */
+    private void prepareObjects(final List<Object> pending) {
+        //The recycled views aren't in use, so the executor can fill them in
+        final ArrayList<View> convertViews = new ArrayList<>();
+        for (Object object : pending) {
+            if (object == null) continue;
+            Integer count = preparingObjects.get(object);
+            preparingObjects.put(object, count == null ? 1 : count + 1);
+            if (!recycledViews.isEmpty()) {
+                View convertView = recycledViews.remove(recycledViews.size() - 1);
+                convertView.setSelected(false);
+                convertViews.add(convertView);
+            }
+        }
+
+        final int batchSize = preparationBatchSize;
+        final int generation = preparationGeneration;
+        preparationExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                ArrayList<Object> batch = new ArrayList<>(batchSize);
+                ArrayList<View> views = new ArrayList<>(batchSize);
+                for (Object object : pending) {
+                    //clear() was called, nobody wants these any more
+                    if (generation != preparationGeneration) return;
+                    if (object == null) continue;
+
+                    View convertView = null;
+                    if (!convertViews.isEmpty()) {
+                        convertView = convertViews.remove(convertViews.size() - 1);
+                    }
+                    batch.add(object);
+                    views.add(getViewForObject(object, convertView));
+                    if (batch.size() >= batchSize) {
+                        commitPrepared(batch, views, generation);
+                        batch = new ArrayList<>(batchSize);
+                        views = new ArrayList<>(batchSize);
+                    }
+                }
+                if (!batch.isEmpty()) {
+                    commitPrepared(batch, views, generation);
+                }
+            }
+        });
+    }
+
+    private void commitPrepared(final List<Object> batch, final List<View> views, final int generation) {
+        //View.post isn't safe from other threads before we're attached, so get to the main
+        //thread first and then join the same queue as addObject and removeObject
+        final Runnable commit = new Runnable() {
+            @Override
+            public void run() {
+                if (generation != preparationGeneration) return;
+
+                ArrayList<TokenImageSpan> kept = new ArrayList<>(batch.size());
+                for (int i = 0; i < batch.size(); i++) {
+                    Object object = batch.get(i);
+                    Integer count = preparingObjects.get(object);
+                    if (count == null) {
+                        //removeObject was called while we were preparing it
+                        recycleView(views.get(i));
+                        continue;
+                    }
+                    if (count == 1) {
+                        preparingObjects.remove(object);
+                    } else {
+                        preparingObjects.put(object, count - 1);
+                    }
+
+                    TokenImageSpan span = new TokenImageSpan(views.get(i), object);
+                    //Without a width the tokens are measured when they are first drawn
+                    if (getWidth() > 0) {
+                        span.prepView();
+                        span.cachedBitmap();
+                    }
+                    kept.add(span);
+                }
+                insertSpans(kept);
+            }
+        };
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                post(commit);
+            }
+        });
+    }
+
+    private void insertSpans(List<TokenImageSpan> newSpans) {
+        Editable editable = getText();
+        if (editable == null) return;
+
+        boolean collapsed = hasCollapsedTokens(editable);
+        if (!collapsed) {
+            //Restored tokens come before these
+            buildUnbuiltTokens(editable, Integer.MAX_VALUE);
+        }
+
+        //Put all the tokens in a separate spannable so the text only changes once
+        SpannableStringBuilder ssb = new SpannableStringBuilder();
+        ArrayList<Object> added = new ArrayList<>();
+        ArrayList<TokenImageSpan> addedSpans = new ArrayList<>();
+        HashSet<Object> addedSet = new HashSet<>();
+        for (TokenImageSpan tokenSpan : newSpans) {
+            Object object = tokenSpan.getToken();
+            //Prepared tokens may have become duplicates while they were prepared
+            if (!allowDuplicates && (containsObject(object) || !addedSet.add(object))) {
+                recycleView(tokenSpan.view);
+                continue;
+            }
+
+            SpannableStringBuilder tokenText = buildSpannableForText("");
+            int start = ssb.length();
+            ssb.append(tokenText);
+            ssb.setSpan(tokenSpan, start, start + tokenText.length() - 1, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+            added.add(object);
+            addedSpans.add(tokenSpan);
+        }
+        if (added.isEmpty()) return;
+
+        if (collapsed) {
+            //Wait behind the +x with the tokens before them until the view expands
+            for (TokenImageSpan span : addedSpans) {
+                span.discardBitmap();
+                recycleView(span.view);
+            }
+            addCollapsedObjects(added);
+            notifyTokensAdded(added);
+            return;
+        }
+
+        //We track the objects ourselves, whether or not onSpanAdded gets called for each span
+        batchingTokens = true;
+        try {
+            //There might be a hint visible, so put the objects in front of it
+            int offset = hintVisible ? prefix.length() : editable.length();
+            editable.insert(offset, ssb);
+        } finally {
+            batchingTokens = false;
+        }
+        for (TokenImageSpan span : addedSpans) {
+            tokenSpans.add(editable, span);
+        }
+        for (Object object : added) {
+            addToObjects(object);
+        }
+        spanWatcher.updateCountSpan();
+
+        setSelection(editable.length());
+        reportSpanCount();
+        notifyTokensAdded(added);
+    }
+
+    /**
+     * Remove all the tokens and any text the user has typed. The text only changes once and a
+     * TokenBatchListener is only called once.
+     */
+    @SuppressWarnings("unused")
+    public void clear() {
+        preparationGeneration++;
+        post(new Runnable() {
+            @Override
+            public void run() {
+                Editable text = getText();
+                if (text == null) return;
+
+                ArrayList<Object> removed = objects.toList();
+                batchingTokens = true;
+                try {
+                    text.delete(Math.min(prefix.length(), text.length()), text.length());
+                } finally {
+                    batchingTokens = false;
+                }
+                objects.clear();
+                //The +x count went with the text, nothing is collapsed behind it anymore
+                countSpan = null;
+                collapsePending = false;
+                unbuiltObjects.clear();
+                preparingObjects.clear();
+                reportSpanCount();
+                notifyTokensRemoved(removed);
+            }
+        });
+    }
+
+    /**
+     * Remove an object from the token list. Will remove every token equal to the object, or do
+     * nothing if no object present in the view.
      *
      * @param object object to remove, may be null or not in the view
      */
@@ -786,12 +1726,18 @@ public abstract class TokenCompleteTextView extends MultiAutoCompleteTextView im
                 Editable text = getText();
                 if (text == null) return;
 
-                TokenImageSpan[] spans = text.getSpans(0, text.length(), TokenImageSpan.class);
-                for (TokenImageSpan span : spans) {
-                    if (span.getToken().equals(object)) {
-                        removeSpan(span);
+                //Tokens still being prepared are dropped when they are ready
+                for (Object preparing : new ArrayList<>(preparingObjects.keySet())) {
+                    if (preparing.equals(object)) {
+                        preparingObjects.remove(preparing);
                     }
                 }
+
+                //Removing a span updates the index, so work from a copy
+                for (TokenImageSpan span : new ArrayList<>(tokenSpans.spansFor(text, object))) {
+                    removeSpan(span);
+                }
+                removeHiddenObject(object);
             }
         });
     }
@@ -801,8 +1747,7 @@ public abstract class TokenCompleteTextView extends MultiAutoCompleteTextView im
         if (text == null) return;
 
         //If the spanwatcher has been removed, we need to also manually trigger onSpanRemoved
-        TokenSpanWatcher[] spans = text.getSpans(0, text.length(), TokenSpanWatcher.class);
-        if (spans.length == 0) {
+        if (text.getSpanStart(spanWatcher) < 0) {
             spanWatcher.onSpanRemoved(text, span, text.getSpanStart(span), text.getSpanEnd(span));
         } else if (Build.VERSION.SDK_INT < Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
             //HACK: Need to manually trigger on Span removed if there is only 1 object
@@ -816,6 +1761,16 @@ public abstract class TokenCompleteTextView extends MultiAutoCompleteTextView im
         text.delete(text.getSpanStart(span), text.getSpanEnd(span) + 1);
     }
 
+    private void recycleView(View view) {
+        if (view == null || recycledViews.size() >= recycledViewLimit) return;
+
+        //Some versions report removed spans more than once, a view must not be handed out twice
+        for (View recycled : recycledViews) {
+            if (recycled == view) return;
+        }
+        recycledViews.add(view);
+    }
+
     private void updateHint() {
         Editable text = getText();
         CharSequence hintText = getHint();
@@ -876,11 +1831,20 @@ public abstract class TokenCompleteTextView extends MultiAutoCompleteTextView im
         Editable text = getText();
         if (text == null) return;
 
-        TokenImageSpan[] tokens = text.getSpans(0, text.length(), TokenImageSpan.class);
-        for (TokenImageSpan token : tokens) {
-            token.view.setSelected(false);
+        //This runs on every key press and cursor move, so only touch the selected token
+        boolean changed = false;
+        List<TokenImageSpan> tokens = tokenSpans.all(text);
+        for (int i = 0; i < tokens.size(); i++) {
+            TokenImageSpan token = tokens.get(i);
+            if (token.view.isSelected()) {
+                token.view.setSelected(false);
+                token.invalidateMeasure();
+                changed = true;
+            }
+        }
+        if (changed) {
+            invalidate();
         }
-        invalidate();
     }
 
     protected ArrayList<Serializable> getSerializableObjects() {
@@ -907,7 +1871,13 @@ public abstract class TokenCompleteTextView extends MultiAutoCompleteTextView im
 
     @Override
     public Parcelable onSaveInstanceState() {
-        ArrayList<Serializable> baseObjects = getSerializableObjects();
+        ArrayList<Serializable> baseObjects = null;
+        byte[] encodedObjects = null;
+        if (tokenCodec != null) {
+            encodedObjects = EncodedTokens.encode(objects.toList(), tokenCodec);
+        } else {
+            baseObjects = getSerializableObjects();
+        }
 
         //ARGH! Apparently, saving the parent state on 2.3 mutates the spannable
         //prevent this mutation from triggering add or removes of token objects ~mgod
@@ -922,6 +1892,7 @@ public abstract class TokenCompleteTextView extends MultiAutoCompleteTextView im
         state.tokenClickStyle = tokenClickStyle;
         state.tokenDeleteStyle = deletionStyle;
         state.baseObjects = baseObjects;
+        state.encodedObjects = encodedObjects;
         state.splitChar = splitChar;
 
         return state;
@@ -934,6 +1905,7 @@ public abstract class TokenCompleteTextView extends MultiAutoCompleteTextView im
             return;
         }
 
+        final long restoreStartTime = diagnostics != null ? System.nanoTime() : 0;
         SavedState ss = (SavedState) state;
         super.onRestoreInstanceState(ss.getSuperState());
 
@@ -947,8 +1919,24 @@ public abstract class TokenCompleteTextView extends MultiAutoCompleteTextView im
         splitChar = ss.splitChar;
 
         resetListeners();
-        for (Object obj : convertSerializableArrayToObjectArray(ss.baseObjects)) {
-            addObject(obj);
+        if (ss.encodedObjects != null) {
+            if (tokenCodec == null) {
+                throw new IllegalStateException("Tokens were saved with a TokenCodec, call setTokenCodec before restoring");
+            }
+            restoreObjects(EncodedTokens.decode(ss.encodedObjects, tokenCodec));
+        } else if (ss.baseObjects != null) {
+            restoreObjects(convertSerializableArrayToObjectArray(ss.baseObjects));
+        }
+        if (diagnostics != null) {
+            //Posted after the objects are added
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    if (diagnostics != null) {
+                        diagnostics.onDiagnosticEvent(DiagnosticEvent.Restore, System.nanoTime() - restoreStartTime);
+                    }
+                }
+            });
         }
 
         //This needs to happen after all the objects get added (which also get posted)
@@ -966,6 +1954,40 @@ public abstract class TokenCompleteTextView extends MultiAutoCompleteTextView im
 
     }
 
+    /**
+     * Put restored objects in objects right away, but only build their spans when they are
+     * displayed. A collapsed view only needs the tokens on its first line.
+     */
+    private void restoreObjects(final List<Object> restored) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                Editable text = getText();
+                if (text == null || restored.isEmpty()) return;
+
+                ArrayList<Object> added = new ArrayList<>(restored.size());
+                for (Object object : restored) {
+                    if (object == null) continue;
+                    addToObjects(object);
+                    unbuiltObjects.add(object);
+                    added.add(object);
+                }
+
+                if (isFocused() || !allowCollapse) {
+                    if (insertionFrameBudget > 0) {
+                        scheduleInsertion();
+                    } else {
+                        buildUnbuiltTokens(text, Integer.MAX_VALUE);
+                        setSelection(text.length());
+                    }
+                }
+                //Otherwise handleFocus builds the first line when it collapses the view
+                reportSpanCount();
+                notifyTokensAdded(added);
+            }
+        });
+    }
+
     //When the token is deleted...
     public enum TokenDeleteStyle {
         _Parent, //...do the parent behavior, not recommended
@@ -974,6 +1996,13 @@ public abstract class TokenCompleteTextView extends MultiAutoCompleteTextView im
         ToString //...replace the token with toString of the token object
     }
 
+    //When the user types faster than we filter...
+    public enum FilterCoalesceStyle {
+        Immediate, //...filter every change
+        Debounce, //...wait until the user pauses, then filter the latest text
+        Throttle //...filter at most once per delay, always ending with the latest text
+    }
+
     //When the user clicks on a token...
     public enum TokenClickStyle {
         None(false), //...do nothing, but make sure the cursor is not in the token
@@ -992,12 +2021,50 @@ public abstract class TokenCompleteTextView extends MultiAutoCompleteTextView im
         }
     }
 
+    //What a diagnostic event is about, and what its value means
+    public enum DiagnosticEvent {
+        TextChanged, //...the text changed, value is the new text length
+        DeleteSurroundingText, //...the keyboard deleted text, value is the characters before the cursor
+        SpanCount, //...tokens were added or removed, value is the number of token spans
+        Filter, //...results for the latest filter arrived, value is the nanoseconds since it started
+        Restore //...restored tokens were added, value is the nanoseconds since restoring started
+    }
+
+    /**
+     * Receives internal events from the view. Only called while set with setDiagnostics, so
+     * there is no cost when it's off. Called on the main thread.
+     */
+    public interface TokenDiagnostics {
+        void onDiagnosticEvent(DiagnosticEvent event, long value);
+    }
+
     public interface TokenListener {
         void onTokenAdded(Object token);
 
         void onTokenRemoved(Object token);
     }
 
+    /**
+     * TokenListener that gets the tokens from addObjects and clear in a single call each
+     */
+    public interface TokenBatchListener extends TokenListener {
+        void onTokensAdded(List<Object> tokens);
+
+        void onTokensRemoved(List<Object> tokens);
+    }
+
+    /**
+     * TokenBatchListener that hears when tokens that were already added are displayed, for
+     * example with setInsertionFrameBudget or after restoring the view state
+     */
+    public interface TokenInsertionListener extends TokenBatchListener {
+        /**
+         * @param displayed how many tokens were just put in the text
+         * @param remaining how many tokens are in getObjects but not displayed yet
+         */
+        void onTokensDisplayed(int displayed, int remaining);
+    }
+
     /**
      * Handle saving the token state
      */
@@ -1019,6 +2086,7 @@ public abstract class TokenCompleteTextView extends MultiAutoCompleteTextView im
         TokenClickStyle tokenClickStyle;
         TokenDeleteStyle tokenDeleteStyle;
         ArrayList<Serializable> baseObjects;
+        byte[] encodedObjects;
         char[] splitChar;
 
         @SuppressWarnings("unchecked")
@@ -1029,7 +2097,12 @@ public abstract class TokenCompleteTextView extends MultiAutoCompleteTextView im
             performBestGuess = in.readInt() != 0;
             tokenClickStyle = TokenClickStyle.values()[in.readInt()];
             tokenDeleteStyle = TokenDeleteStyle.values()[in.readInt()];
-            baseObjects = (ArrayList<Serializable>) in.readSerializable();
+            //Tokens are saved with the TokenCodec if there is one, otherwise serialized
+            if (in.readInt() != 0) {
+                encodedObjects = in.createByteArray();
+            } else {
+                baseObjects = (ArrayList<Serializable>) in.readSerializable();
+            }
             splitChar = in.createCharArray();
         }
 
@@ -1045,7 +2118,13 @@ public abstract class TokenCompleteTextView extends MultiAutoCompleteTextView im
             out.writeInt(performBestGuess ? 1 : 0);
             out.writeInt(tokenClickStyle.ordinal());
             out.writeInt(tokenDeleteStyle.ordinal());
-            out.writeSerializable(baseObjects);
+            if (encodedObjects != null) {
+                out.writeInt(1);
+                out.writeByteArray(encodedObjects);
+            } else {
+                out.writeInt(0);
+                out.writeSerializable(baseObjects);
+            }
             out.writeCharArray(splitChar);
         }
 
@@ -1053,7 +2132,7 @@ public abstract class TokenCompleteTextView extends MultiAutoCompleteTextView im
         public String toString() {
             String str = "TokenCompleteTextView.SavedState{"
                     + Integer.toHexString(System.identityHashCode(this))
-                    + " tokens=" + baseObjects;
+                    + " tokens=" + (encodedObjects != null ? encodedObjects.length + " bytes" : baseObjects);
             return str + "}";
         }
     }
@@ -1112,17 +2191,45 @@ public abstract class TokenCompleteTextView extends MultiAutoCompleteTextView im
 
     private class ViewSpan extends ReplacementSpan {
         protected View view;
+        private int measuredMaxWidth = -1;
+        private boolean measureDirty = true;
 
         public ViewSpan(View v) {
             view = v;
         }
 
-        private void prepView() {
-            int widthSpec = MeasureSpec.makeMeasureSpec((int) maxTextWidth(), MeasureSpec.AT_MOST);
+        /**
+         * Force the view to be measured again before it is next drawn or sized
+         */
+        void invalidateMeasure() {
+            measureDirty = true;
+        }
+
+        void prepView() {
+            int maxWidth = (int) maxTextWidth();
+            //Measuring on every draw is expensive with a lot of tokens, only do it when something changed
+            if (!measureDirty && maxWidth == measuredMaxWidth && !view.isLayoutRequested()) return;
+
+            int widthSpec = MeasureSpec.makeMeasureSpec(maxWidth, MeasureSpec.AT_MOST);
             int heightSpec = MeasureSpec.makeMeasureSpec(0, MeasureSpec.UNSPECIFIED);
 
             view.measure(widthSpec, heightSpec);
             view.layout(0, 0, view.getMeasuredWidth(), view.getMeasuredHeight());
+            measuredMaxWidth = maxWidth;
+            measureDirty = false;
+            onMeasured();
+        }
+
+        /**
+         * Called after the view has been measured and laid out again
+         */
+        void onMeasured() {}
+
+        /**
+         * @return a bitmap of the view to draw instead of the view itself, or null
+         */
+        Bitmap cachedBitmap() {
+            return null;
         }
 
         public void draw(Canvas canvas, CharSequence text, int start, int end, float x, int top, int y, int bottom, Paint paint) {
@@ -1132,7 +2239,12 @@ public abstract class TokenCompleteTextView extends MultiAutoCompleteTextView im
             //Centering the token looks like a better strategy that aligning the bottom
             int padding = (bottom - top - view.getBottom()) / 2;
             canvas.translate(x, bottom - view.getBottom() - padding);
-            view.draw(canvas);
+            Bitmap bitmap = cachedBitmap();
+            if (bitmap != null) {
+                canvas.drawBitmap(bitmap, 0, 0, null);
+            } else {
+                view.draw(canvas);
+            }
             canvas.restore();
         }
 
@@ -1180,6 +2292,7 @@ public abstract class TokenCompleteTextView extends MultiAutoCompleteTextView im
             count = c;
             text = "+" + count;
             ((TextView) view).setText(text);
+            invalidateMeasure();
         }
     }
 
@@ -1187,6 +2300,7 @@ public abstract class TokenCompleteTextView extends MultiAutoCompleteTextView im
         private Object token;
         private OnTokenClickListener onTokenClickListener;
         private OnTokenLongClickListener onTokenLongClickListener;
+        private boolean bitmapSelected;
 
         public TokenImageSpan(View d, Object token) {
             super(d);
@@ -1197,6 +2311,35 @@ public abstract class TokenCompleteTextView extends MultiAutoCompleteTextView im
             return this.token;
         }
 
+        @Override
+        void onMeasured() {
+            discardBitmap();
+        }
+
+        void discardBitmap() {
+            if (tokenBitmaps != null) {
+                tokenBitmaps.remove(this);
+            }
+        }
+
+        @Override
+        Bitmap cachedBitmap() {
+            if (tokenBitmaps == null) return null;
+
+            Bitmap bitmap = tokenBitmaps.get(this);
+            if (bitmap != null && bitmapSelected == view.isSelected()) return bitmap;
+
+            int width = view.getWidth();
+            int height = view.getHeight();
+            if (width <= 0 || height <= 0) return null;
+
+            bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            view.draw(new Canvas(bitmap));
+            bitmapSelected = view.isSelected();
+            tokenBitmaps.put(this, bitmap);
+            return bitmap;
+        }
+
         public void onClick() {
             Editable text = getText();
             if (text == null) return;
@@ -1208,11 +2351,13 @@ public abstract class TokenCompleteTextView extends MultiAutoCompleteTextView im
                     if (!view.isSelected()) {
                         clearSelections();
                         view.setSelected(true);
+                        invalidateMeasure();
                         break;
                     }
 
                     if (tokenClickStyle == TokenClickStyle.SelectDeselect) {
                         view.setSelected(false);
+                        invalidateMeasure();
                         invalidate();
                         break;
                     }
@@ -1266,25 +2411,192 @@ public abstract class TokenCompleteTextView extends MultiAutoCompleteTextView im
         void onLongClick(TokenImageSpan tokenImageSpan);
     }
 
+    /**
+     * The token spans in the text in text order, kept up to date by the TokenSpanWatcher so we
+     * don't need to search all the spans in the text with getSpans
+     * <p/>
+     * Tokens never overlap, so both their starts and ends are sorted and offsets can be found
+     * with a binary search. If the view gets a new Editable, the index is rebuilt from it once.
+     */
+    private class TokenSpanIndex {
+        private Spanned text;
+        private boolean watched = false;
+        private final ArrayList<TokenImageSpan> spans = new ArrayList<>();
+        private final HashMap<Object, ArrayList<TokenImageSpan>> spansByToken = new HashMap<>();
+
+        private void sync(Spanned current) {
+            //Spans added or removed while the span watcher was off the text never reached us,
+            //so only trust the index while the watcher has been there all along
+            boolean nowWatched = current != null && current.getSpanStart(spanWatcher) >= 0;
+            if (current == text && watched && nowWatched) return;
+
+            text = current;
+            watched = nowWatched;
+            spans.clear();
+            spansByToken.clear();
+            if (current == null) return;
+
+            TokenImageSpan[] found = current.getSpans(0, current.length(), TokenImageSpan.class);
+            final Spanned sortText = current;
+            Arrays.sort(found, new Comparator<TokenImageSpan>() {
+                @Override
+                public int compare(TokenImageSpan lhs, TokenImageSpan rhs) {
+                    return sortText.getSpanStart(lhs) - sortText.getSpanStart(rhs);
+                }
+            });
+            for (TokenImageSpan span : found) {
+                spans.add(span);
+                byToken(span.getToken()).add(span);
+            }
+        }
+
+        private ArrayList<TokenImageSpan> byToken(Object token) {
+            ArrayList<TokenImageSpan> list = spansByToken.get(token);
+            if (list == null) {
+                list = new ArrayList<>(1);
+                spansByToken.put(token, list);
+            }
+            return list;
+        }
+
+        private int indexOf(List<TokenImageSpan> list, TokenImageSpan span) {
+            for (int i = 0; i < list.size(); i++) {
+                if (list.get(i) == span) return i;
+            }
+            return -1;
+        }
+
+        void add(Spanned current, TokenImageSpan span) {
+            sync(current);
+            ArrayList<TokenImageSpan> same = byToken(span.getToken());
+            if (indexOf(same, span) >= 0) return;
+
+            int start = text.getSpanStart(span);
+            int lo = 0;
+            int hi = spans.size();
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (text.getSpanStart(spans.get(mid)) < start) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            spans.add(lo, span);
+            same.add(span);
+        }
+
+        void remove(Spanned current, TokenImageSpan span) {
+            if (current != text) {
+                //The index will be rebuilt from the new text when it's next used
+                sync(current);
+                return;
+            }
+
+            ArrayList<TokenImageSpan> same = spansByToken.get(span.getToken());
+            int position = same == null ? -1 : indexOf(same, span);
+            if (position < 0) return;
+
+            same.remove(position);
+            if (same.isEmpty()) {
+                spansByToken.remove(span.getToken());
+            }
+            //The span is already gone from the text, so we can't binary search for it
+            spans.remove(indexOf(spans, span));
+        }
+
+        /**
+         * @return every token span in text order, don't modify it
+         */
+        List<TokenImageSpan> all(Spanned current) {
+            sync(current);
+            return spans;
+        }
+
+        /**
+         * @return the token spans for objects equal to the token, don't modify it
+         */
+        List<TokenImageSpan> spansFor(Spanned current, Object token) {
+            sync(current);
+            ArrayList<TokenImageSpan> same = spansByToken.get(token);
+            if (same != null) return same;
+
+            //Tokens that only override equals, or whose hashCode changed, miss the map
+            ArrayList<TokenImageSpan> equal = new ArrayList<>();
+            for (TokenImageSpan span : spans) {
+                if (span.getToken().equals(token)) {
+                    equal.add(span);
+                }
+            }
+            return equal;
+        }
+
+        /**
+         * @return the position of the first token getSpans(start, end) would find
+         */
+        int firstIn(Spanned current, int start, int end) {
+            sync(current);
+            int lo = 0;
+            int hi = spans.size();
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                int spanEnd = text.getSpanEnd(spans.get(mid));
+                //getSpans skips spans that only touch the start of a non empty range
+                if (spanEnd < start || (spanEnd == start && start != end)) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+
+        /**
+         * @return the position after the last token getSpans(start, end) would find
+         */
+        int endIn(Spanned current, int start, int end) {
+            sync(current);
+            int lo = 0;
+            int hi = spans.size();
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                int spanStart = text.getSpanStart(spans.get(mid));
+                //getSpans skips spans that only touch the end of a non empty range
+                if (spanStart < end || (spanStart == end && start == end)) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+    }
+
     private class TokenSpanWatcher implements SpanWatcher {
-        private void updateCountSpan(final int change) {
+        private void updateCountSpan() {
             final Editable text = getText();
             if (text == null || lastLayout == null) return;
 
-            CountSpan[] counts = text.getSpans(0, text.length(), CountSpan.class);
-            if (counts.length == 1) {
-                final CountSpan span = counts[0];
+            final CountSpan span = countSpan;
+            if (span != null && text.getSpanStart(span) >= 0) {
                 post(new Runnable() {
                     @Override
                     public void run() {
                         int spanStart = text.getSpanStart(span);
                         int spanEnd = text.getSpanEnd(span);
-                        span.setCount(span.getCount() + change);
+                        if (spanStart < 0) return;
+
+                        //Count everything not in front of the +x, so unbuilt and hidden
+                        //tokens are counted once however they changed
+                        span.setCount(objects.size() - tokenSpans.endIn(text, 0, spanStart));
                         if (span.getCount() > 0) {
                             text.replace(spanStart, spanEnd, span.text);
                         } else {
                             text.delete(spanStart, spanEnd);
                             text.removeSpan(span);
+                            if (countSpan == span) {
+                                countSpan = null;
+                            }
                         }
                     }
                 });
@@ -1294,10 +2606,15 @@ public abstract class TokenCompleteTextView extends MultiAutoCompleteTextView im
 
         @Override
         public void onSpanAdded(Spannable text, Object what, int start, int end) {
-            if (what instanceof TokenImageSpan && !savingState) {
+            if (what instanceof TokenImageSpan) {
+                tokenSpans.add(text, (TokenImageSpan) what);
+            }
+
+            if (what instanceof TokenImageSpan && !savingState && !batchingTokens && !hidingTokens) {
                 TokenImageSpan token = (TokenImageSpan) what;
-                objects.add(token.getToken());
-                updateCountSpan(1);
+                addToObjects(token.getToken());
+                updateCountSpan();
+                reportSpanCount();
 
                 if (listener != null)
                     listener.onTokenAdded(token.getToken());
@@ -1306,12 +2623,20 @@ public abstract class TokenCompleteTextView extends MultiAutoCompleteTextView im
 
         @Override
         public void onSpanRemoved(Spannable text, Object what, int start, int end) {
-            if (what instanceof TokenImageSpan && !savingState) {
+            if (what instanceof TokenImageSpan) {
+                tokenSpans.remove(text, (TokenImageSpan) what);
+                ((TokenImageSpan) what).discardBitmap();
+            }
+
+            if (what instanceof TokenImageSpan && !savingState && !hidingTokens) {
                 TokenImageSpan token = (TokenImageSpan) what;
-                if (objects.contains(token.getToken())) {
-                    objects.remove(token.getToken());
-                    updateCountSpan(-1);
+                recycleView(token.view);
+                if (batchingTokens) return;
+
+                if (removeFromObjects(token.getToken())) {
+                    updateCountSpan();
                 }
+                reportSpanCount();
 
                 if (listener != null)
                     listener.onTokenRemoved(token.getToken());
@@ -1335,6 +2660,10 @@ public abstract class TokenCompleteTextView extends MultiAutoCompleteTextView im
 
         @Override
         public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            //Before the change so other listeners never see an out of date token start
+            if (boundaryTracker != null && s == trackedText) {
+                boundaryTracker.beforeTextChanged(start, count, after);
+            }
         }
 
         @Override
@@ -1343,16 +2672,23 @@ public abstract class TokenCompleteTextView extends MultiAutoCompleteTextView im
 
         @Override
         public void onTextChanged(CharSequence s, int start, int before, int count) {
-            System.out.println("changing text: " + s);
             Editable text = getText();
             if (text == null)
                 return;
 
+            if (diagnostics != null) {
+                diagnostics.onDiagnosticEvent(DiagnosticEvent.TextChanged, s.length());
+            }
+
             clearSelections();
             updateHint();
 
-            TokenImageSpan[] spans = text.getSpans(start - before, start - before + count, TokenImageSpan.class);
+            int first = tokenSpans.firstIn(text, start - before, start - before + count);
+            int end = tokenSpans.endIn(text, start - before, start - before + count);
+            if (first >= end) return;
 
+            //Removing tokens updates the index, so work from a copy
+            List<TokenImageSpan> spans = new ArrayList<>(tokenSpans.all(text).subList(first, end));
             for (TokenImageSpan token : spans) {
 
                 int position = start + count;
@@ -1379,62 +2715,53 @@ public abstract class TokenCompleteTextView extends MultiAutoCompleteTextView im
     }
 
     private class CharacterTokenizer implements Tokenizer {
-        ArrayList<Character> splitChar;
+        SplitChars splitChars;
 
         CharacterTokenizer(char[] splitChar) {
             super();
-            this.splitChar = new ArrayList<>(splitChar.length);
-            for (char c : splitChar) this.splitChar.add(c);
+            this.splitChars = new SplitChars(splitChar);
         }
 
         public int findTokenStart(CharSequence text, int cursor) {
-            int i = cursor;
-
-            while (i > 0 && !splitChar.contains(text.charAt(i - 1))) {
-                i--;
-            }
-            while (i < cursor && text.charAt(i) == ' ') {
-                i++;
-            }
-
-            return i;
+            return splitChars.findTokenStart(text, cursor);
         }
 
         public int findTokenEnd(CharSequence text, int cursor) {
-            int i = cursor;
-            int len = text.length();
+            return splitChars.findTokenEnd(text, cursor);
+        }
 
-            while (i < len) {
-                if (splitChar.contains(text.charAt(i))) {
-                    return i;
-                } else {
-                    i++;
-                }
+        public CharSequence terminateToken(CharSequence text) {
+            if (!(text instanceof Spanned)) {
+                return splitChars.terminate(text.toString());
+            }
+            if (splitChars.isTerminated(text)) {
+                return text;
             }
 
-            return len;
+            SpannableString sp = new SpannableString(splitChars.terminate(text.toString()));
+            TextUtils.copySpansFrom((Spanned) text, 0, text.length(),
+                    Object.class, sp, 0);
+            return sp;
         }
+    }
 
-        public CharSequence terminateToken(CharSequence text) {
-            int i = text.length();
+    /**
+     * Reports how long a filter took, unless a newer filter started before it finished. Those
+     * results are dropped, so the time would mix up two different filters.
+     */
+    private class TimedFilterListener implements Filter.FilterListener {
+        private final int generation;
+        private final long startTime = System.nanoTime();
 
-            while (i > 0 && text.charAt(i - 1) == ' ') {
-                i--;
-            }
+        TimedFilterListener(int generation) {
+            this.generation = generation;
+        }
 
-            if (i > 0 && splitChar.contains(text.charAt(i - 1))) {
-                return text;
-            } else {
-                // Try not to use a space as a token character
-                String token = (splitChar.size() > 1 && splitChar.get(0) == ' ' ? splitChar.get(1) : splitChar.get(0)) + " ";
-                if (text instanceof Spanned) {
-                    SpannableString sp = new SpannableString(text + token);
-                    TextUtils.copySpansFrom((Spanned) text, 0, text.length(),
-                            Object.class, sp, 0);
-                    return sp;
-                } else {
-                    return text + token;
-                }
+        @Override
+        public void onFilterComplete(int count) {
+            TokenCompleteTextView.this.onFilterComplete(count);
+            if (diagnostics != null && generation == filterGeneration) {
+                diagnostics.onDiagnosticEvent(DiagnosticEvent.Filter, System.nanoTime() - startTime);
             }
         }
     }
@@ -1449,8 +2776,9 @@ public abstract class TokenCompleteTextView extends MultiAutoCompleteTextView im
         // The onKeyPressed method does not always do this.
         @Override
         public boolean deleteSurroundingText(int beforeLength, int afterLength) {
-            System.out.println("before: " + beforeLength + " after: " + afterLength);
-            System.out.println("selection: " + getSelectionStart() + " end: " + getSelectionEnd());
+            if (diagnostics != null) {
+                diagnostics.onDiagnosticEvent(DiagnosticEvent.DeleteSurroundingText, beforeLength);
+            }
 
             //Shouldn't be able to delete prefix, so don't do anything
             if (getSelectionStart() <= prefix.length())
@@ -1475,20 +2803,19 @@ public abstract class TokenCompleteTextView extends MultiAutoCompleteTextView im
 
         @Override
         public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            super.beforeTextChanged(s, start, count, after);
             currentTokens.clear();
             Editable text = getText();
             if (text == null)
                 return;
 
-            TokenImageSpan[] spans = text.getSpans(0, text.length(), TokenImageSpan.class);
-            currentTokens.addAll(Arrays.asList(spans));
+            currentTokens.addAll(tokenSpans.all(text));
         }
 
         @Override
         public void afterTextChanged(Editable s) {
-            TokenImageSpan[] spans = s.getSpans(0, s.length(), TokenImageSpan.class);
             for (TokenImageSpan token : currentTokens) {
-                if (!Arrays.asList(spans).contains(token)) {
+                if (s.getSpanStart(token) < 0) {
                     spanWatcher.onSpanRemoved(s, token, s.getSpanStart(token), s.getSpanEnd(token));
                 }
             }
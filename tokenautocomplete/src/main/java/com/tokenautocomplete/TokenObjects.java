@@ -0,0 +1,142 @@
+package com.tokenautocomplete;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+
+/**
+ * The token objects of a view in the order they were added, with duplicates
+ * <p/>
+ * Adding, checking for an equal object and removing an exact instance are all constant time.
+ * The objects are linked in order, each instance maps to its links and each group of equal
+ * objects to a count. A count remembers the hashCode it was filed under, so an object whose
+ * hashCode changed after it was added can still be removed.
+ */
+final class TokenObjects {
+
+    private static final class Count {
+        final Object object;
+        final int hash;
+        int count;
+
+        Count(Object object) {
+            this.object = object;
+            this.hash = object.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Count && object.equals(((Count) o).object);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static final class Node {
+        final Object object;
+        final Count count;
+        Node previous;
+        Node next;
+
+        Node(Object object, Count count) {
+            this.object = object;
+            this.count = count;
+        }
+    }
+
+    private final HashMap<Count, Count> counts = new HashMap<>();
+    private final IdentityHashMap<Object, ArrayList<Node>> nodes = new IdentityHashMap<>();
+    private Node first;
+    private Node last;
+    private int size;
+
+    int size() {
+        return size;
+    }
+
+    boolean contains(Object object) {
+        return counts.containsKey(new Count(object));
+    }
+
+    void add(Object object) {
+        Count probe = new Count(object);
+        Count count = counts.get(probe);
+        if (count == null) {
+            count = probe;
+            counts.put(count, count);
+        }
+        count.count++;
+
+        Node node = new Node(object, count);
+        if (last == null) {
+            first = node;
+        } else {
+            last.next = node;
+            node.previous = last;
+        }
+        last = node;
+
+        ArrayList<Node> same = nodes.get(object);
+        if (same == null) {
+            same = new ArrayList<>(1);
+            nodes.put(object, same);
+        }
+        same.add(node);
+        size++;
+    }
+
+    /**
+     * Remove the last occurrence of this exact instance
+     *
+     * @return false if the instance isn't in the list
+     */
+    boolean remove(Object object) {
+        ArrayList<Node> same = nodes.get(object);
+        if (same == null) return false;
+
+        Node node = same.remove(same.size() - 1);
+        if (same.isEmpty()) {
+            nodes.remove(object);
+        }
+
+        if (node.previous == null) {
+            first = node.next;
+        } else {
+            node.previous.next = node.next;
+        }
+        if (node.next == null) {
+            last = node.previous;
+        } else {
+            node.next.previous = node.previous;
+        }
+
+        //Looked up with the same Count, so the stored hash finds it even if equals changed
+        if (--node.count.count == 0) {
+            counts.remove(node.count);
+        }
+        size--;
+        return true;
+    }
+
+    void clear() {
+        counts.clear();
+        nodes.clear();
+        first = null;
+        last = null;
+        size = 0;
+    }
+
+    /**
+     * @return a copy of the objects in order
+     */
+    ArrayList<Object> toList() {
+        ArrayList<Object> list = new ArrayList<>(size);
+        for (Node node = first; node != null; node = node.next) {
+            list.add(node.object);
+        }
+        return list;
+    }
+}